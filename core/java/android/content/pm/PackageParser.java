@@ -107,6 +107,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
 import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.security.GeneralSecurityException;
 import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
@@ -326,6 +331,18 @@ public class PackageParser {
     private Callback mCallback;
     private File mCacheDir;
 
+    /** Magic number at the start of every package cache entry ("PKGC"). */
+    private static final int CACHE_ENTRY_MAGIC = 0x504b4743;
+
+    /**
+     * Version of the on-disk cache entry framing. Increment this whenever the header layout
+     * changes; entries with a different version are treated as cache misses.
+     */
+    private static final int CACHE_ENTRY_FORMAT_VERSION = 1;
+
+    /** Size of the header (magic, format version, payload length) of a cache entry. */
+    private static final int CACHE_ENTRY_HEADER_SIZE = 12;
+
     private static final int SDK_VERSION = Build.VERSION.SDK_INT;
     private static final String[] SDK_CODENAMES = Build.VERSION.ACTIVE_CODENAMES;
 
@@ -1078,6 +1095,64 @@ public class PackageParser {
         return serialized;
     }
 
+    /**
+     * Reads the payload of the cache entry stored in {@code cacheFile}. The file is memory
+     * mapped so that the header can be validated without pulling the whole entry onto the
+     * heap; the payload is then copied out in a single pass of exactly the right size.
+     *
+     * @return the payload, or {@code null} if the entry has a bad header or is truncated.
+     */
+    @VisibleForTesting
+    public static byte[] readCacheFile(File cacheFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(cacheFile.toPath(),
+                StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size < CACHE_ENTRY_HEADER_SIZE || size > Integer.MAX_VALUE) {
+                return null;
+            }
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            buffer.order(ByteOrder.nativeOrder());
+            if (buffer.getInt() != CACHE_ENTRY_MAGIC
+                    || buffer.getInt() != CACHE_ENTRY_FORMAT_VERSION) {
+                return null;
+            }
+            final int length = buffer.getInt();
+            if (length < 0 || length != size - CACHE_ENTRY_HEADER_SIZE) {
+                return null;
+            }
+            final byte[] payload = new byte[length];
+            buffer.get(payload);
+            return payload;
+        }
+    }
+
+    /**
+     * Writes {@code payload} as a framed cache entry to {@code cacheFile}. The entry is
+     * written to a temporary file and renamed into place, so concurrent readers never
+     * observe a partially written entry.
+     */
+    @VisibleForTesting
+    public static void writeCacheFile(File cacheFile, byte[] payload) {
+        final File tempFile = new File(cacheFile.getParentFile(), cacheFile.getName() + ".tmp");
+        final ByteBuffer header = ByteBuffer.allocate(CACHE_ENTRY_HEADER_SIZE)
+                .order(ByteOrder.nativeOrder());
+        header.putInt(CACHE_ENTRY_MAGIC);
+        header.putInt(CACHE_ENTRY_FORMAT_VERSION);
+        header.putInt(payload.length);
+        try (FileOutputStream fos = new FileOutputStream(tempFile)) {
+            fos.write(header.array());
+            fos.write(payload);
+        } catch (IOException ioe) {
+            Slog.w(TAG, "Error writing cache entry.", ioe);
+            tempFile.delete();
+            return;
+        }
+        if (!tempFile.renameTo(cacheFile)) {
+            Slog.w(TAG, "Unable to rename cache entry to " + cacheFile);
+            tempFile.delete();
+        }
+    }
+
     /**
      * Given a {@code packageFile} and a {@code cacheFile} returns whether the
      * cache file is up to date based on the mod-time of both files.
@@ -1127,7 +1202,12 @@ public class PackageParser {
                 return null;
             }
 
-            final byte[] bytes = IoUtils.readFileAsByteArray(cacheFile.getAbsolutePath());
+            final byte[] bytes = readCacheFile(cacheFile);
+            if (bytes == null) {
+                // The entry was truncated or written by an older cache format.
+                cacheFile.delete();
+                return null;
+            }
             Package p = fromCacheEntry(bytes);
             if (mCallback != null) {
                 String[] overlayApks = mCallback.getOverlayApks(p.packageName);
@@ -1175,12 +1255,7 @@ public class PackageParser {
                 return;
             }
 
-            try (FileOutputStream fos = new FileOutputStream(cacheFile)) {
-                fos.write(cacheEntry);
-            } catch (IOException ioe) {
-                Slog.w(TAG, "Error writing cache entry.", ioe);
-                cacheFile.delete();
-            }
+            writeCacheFile(cacheFile, cacheEntry);
         } catch (Throwable e) {
             Slog.w(TAG, "Error saving package cache.", e);
         }
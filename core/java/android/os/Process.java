@@ -978,6 +978,22 @@ public class Process {
          * True if the process was started with a wrapper attached.
          */
         public boolean usingWrapper;
+
+        /**
+         * Time in milliseconds spent waiting for the connection to the zygote to become
+         * available, including any other start that was in progress on it.
+         */
+        public long lockWaitTime;
+
+        /**
+         * Time in milliseconds spent writing the request to the zygote.
+         */
+        public long writeTime;
+
+        /**
+         * Time in milliseconds spent waiting for the zygote to reply with the new pid.
+         */
+        public long responseTime;
     }
 
     /**
@@ -80,7 +80,7 @@ public class ZygoteProcess {
         final BufferedWriter writer;
         final List<String> abiList;
 
-        boolean mClosed;
+        volatile boolean mClosed;
 
         private ZygoteState(LocalSocket socket, DataInputStream inputStream,
                 BufferedWriter writer, List<String> abiList) {
@@ -140,9 +140,9 @@ public class ZygoteProcess {
     }
 
     /**
-     * Lock object to protect access to the two ZygoteStates below. This lock must be
-     * acquired while communicating over the ZygoteState's socket, to prevent
-     * interleaved access.
+     * Lock object to protect access to the two ZygoteStates below. Communication over a
+     * ZygoteState's socket is instead serialized by holding the lock of that ZygoteState,
+     * so that a start waiting on one zygote does not hold up requests to the other.
      */
     private final Object mLock = new Object();
 
@@ -251,20 +251,10 @@ public class ZygoteProcess {
      *
      * @throws ZygoteStartFailedEx if process start failed for any reason
      */
-    @GuardedBy("mLock")
+    @GuardedBy("zygoteState")
     private static Process.ProcessStartResult zygoteSendArgsAndGetResult(
-            ZygoteState zygoteState, ArrayList<String> args)
-            throws ZygoteStartFailedEx {
+            ZygoteState zygoteState, byte[] request) throws ZygoteStartFailedEx {
         try {
-            // Throw early if any of the arguments are malformed. This means we can
-            // avoid writing a partial response to the zygote.
-            int sz = args.size();
-            for (int i = 0; i < sz; i++) {
-                if (args.get(i).indexOf('\n') >= 0) {
-                    throw new ZygoteStartFailedEx("embedded newlines not allowed");
-                }
-            }
-
             /**
              * See com.android.internal.os.SystemZygoteInit.readArgumentList()
              * Presently the wire format to the zygote process is:
@@ -275,19 +265,14 @@ public class ZygoteProcess {
              * the child or -1 on failure, followed by boolean to
              * indicate whether a wrapper process was used.
              */
-            final BufferedWriter writer = zygoteState.writer;
             final DataInputStream inputStream = zygoteState.inputStream;
 
-            writer.write(Integer.toString(args.size()));
-            writer.newLine();
-
-            for (int i = 0; i < sz; i++) {
-                String arg = args.get(i);
-                writer.write(arg);
-                writer.newLine();
-            }
-
-            writer.flush();
+            // The whole request is sent with a single write rather than one buffered
+            // write per argument, so it reaches the zygote in as few socket writes as
+            // its size allows.
+            final long writeStartTime = SystemClock.elapsedRealtime();
+            zygoteState.socket.getOutputStream().write(request);
+            final long responseStartTime = SystemClock.elapsedRealtime();
 
             // Should there be a timeout on this?
             Process.ProcessStartResult result = new Process.ProcessStartResult();
@@ -297,6 +282,8 @@ public class ZygoteProcess {
             // upon.
             result.pid = inputStream.readInt();
             result.usingWrapper = inputStream.readBoolean();
+            result.writeTime = responseStartTime - writeStartTime;
+            result.responseTime = SystemClock.elapsedRealtime() - responseStartTime;
 
             if (result.pid < 0) {
                 throw new ZygoteStartFailedEx("fork() failed");
@@ -428,11 +415,51 @@ public class ZygoteProcess {
             }
         }
 
-        synchronized(mLock) {
-            return zygoteSendArgsAndGetResult(openZygoteSocketIfNeeded(abi), argsForZygote);
+        final byte[] request = encodeZygoteRequest(argsForZygote);
+        final long lockStartTime = SystemClock.elapsedRealtime();
+        while (true) {
+            final ZygoteState zygoteState;
+            synchronized(mLock) {
+                zygoteState = openZygoteSocketIfNeeded(abi);
+            }
+            synchronized (zygoteState) {
+                // Another start may have failed and closed this connection while we were
+                // waiting for it; if so, go back and open a new one.
+                if (zygoteState.isClosed()) {
+                    continue;
+                }
+                final long lockWaitTime = SystemClock.elapsedRealtime() - lockStartTime;
+                final Process.ProcessStartResult result =
+                        zygoteSendArgsAndGetResult(zygoteState, request);
+                result.lockWaitTime = lockWaitTime;
+                return result;
+            }
         }
     }
 
+    /**
+     * Encodes an argument list in the zygote wire format, see
+     * {@link #zygoteSendArgsAndGetResult}.
+     *
+     * @throws ZygoteStartFailedEx if any of the arguments contains a newline
+     */
+    private static byte[] encodeZygoteRequest(ArrayList<String> args)
+            throws ZygoteStartFailedEx {
+        final int sz = args.size();
+        final StringBuilder sb = new StringBuilder(sz * 32);
+        sb.append(sz).append('\n');
+        for (int i = 0; i < sz; i++) {
+            final String arg = args.get(i);
+            // Throw early if any of the arguments are malformed. This means we can
+            // avoid writing a partial request to the zygote.
+            if (arg.indexOf('\n') >= 0) {
+                throw new ZygoteStartFailedEx("embedded newlines not allowed");
+            }
+            sb.append(arg).append('\n');
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
     /**
      * Tries to establish a connection to the zygote that handles a given {@code abi}. Might block
      * and retry if the zygote is unresponsive. This method is a no-op if a connection is
@@ -490,8 +517,11 @@ public class ZygoteProcess {
      */
     public boolean preloadPackageForAbi(String packagePath, String libsPath, String cacheKey,
                                         String abi) throws ZygoteStartFailedEx, IOException {
+        final ZygoteState state;
         synchronized(mLock) {
-            ZygoteState state = openZygoteSocketIfNeeded(abi);
+            state = openZygoteSocketIfNeeded(abi);
+        }
+        synchronized (state) {
             state.writer.write("4");
             state.writer.newLine();
 
@@ -520,8 +550,11 @@ public class ZygoteProcess {
      * or due to a previous call to {@code preloadDefault}. Note that this call is synchronous.
      */
     public boolean preloadDefault(String abi) throws ZygoteStartFailedEx, IOException {
+        final ZygoteState state;
         synchronized (mLock) {
-            ZygoteState state = openZygoteSocketIfNeeded(abi);
+            state = openZygoteSocketIfNeeded(abi);
+        }
+        synchronized (state) {
             // Each query starts with the argument count (1 in this case)
             state.writer.write("1");
             state.writer.newLine();
@@ -95,6 +95,7 @@ import java.util.Calendar;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
@@ -3568,6 +3569,7 @@ public class BatteryStatsImpl extends BatteryStats {
 
     public void updateTimeBasesLocked(boolean unplugged, int screenState, long uptime,
             long realtime) {
+        applyPendingEventsLocked();
         final boolean screenOff = isScreenOff(screenState) || isScreenDoze(screenState);
         final boolean updateOnBatteryTimeBase = unplugged != mOnBatteryTimeBase.isRunning();
         final boolean updateOnBatteryScreenOffTimeBase =
@@ -3637,6 +3639,7 @@ public class BatteryStatsImpl extends BatteryStats {
      * @see #scheduleRemoveIsolatedUidLocked(int, int)
      */
     public void removeIsolatedUidLocked(int isolatedUid) {
+        applyPendingEventsLocked();
         mIsolatedUids.delete(isolatedUid);
         mKernelUidCpuTimeReader.removeUid(isolatedUid);
         mKernelUidCpuFreqTimeReader.removeUid(isolatedUid);
@@ -3648,12 +3651,15 @@ public class BatteryStatsImpl extends BatteryStats {
     }
 
     public void noteEventLocked(int code, String name, int uid) {
+        noteEventLocked(code, name, uid, mClocks.elapsedRealtime(), mClocks.uptimeMillis());
+    }
+
+    public void noteEventLocked(int code, String name, int uid, long elapsedRealtime,
+            long uptime) {
         uid = mapUid(uid);
         if (!mActiveEvents.updateState(code, name, uid, 0)) {
             return;
         }
-        final long elapsedRealtime = mClocks.elapsedRealtime();
-        final long uptime = mClocks.uptimeMillis();
         addHistoryEventLocked(elapsedRealtime, uptime, code, name, uid);
     }
 
@@ -3711,6 +3717,7 @@ public class BatteryStatsImpl extends BatteryStats {
     }
 
     public void noteUidProcessStateLocked(int uid, int state) {
+        applyPendingEventsLocked();
         int parentUid = mapUid(uid);
         if (uid != parentUid) {
             // Isolated UIDs process state is already rolled up into parent, so no need to track
@@ -3734,9 +3741,12 @@ public class BatteryStatsImpl extends BatteryStats {
     }
 
     public void noteSyncStartLocked(String name, int uid) {
+        noteSyncStartLocked(name, uid, mClocks.elapsedRealtime(), mClocks.uptimeMillis());
+    }
+
+    public void noteSyncStartLocked(String name, int uid, long elapsedRealtime,
+            long uptime) {
         uid = mapUid(uid);
-        final long elapsedRealtime = mClocks.elapsedRealtime();
-        final long uptime = mClocks.uptimeMillis();
         getUidStatsLocked(uid).noteStartSyncLocked(name, elapsedRealtime);
         if (!mActiveEvents.updateState(HistoryItem.EVENT_SYNC_START, name, uid, 0)) {
             return;
@@ -3745,9 +3755,12 @@ public class BatteryStatsImpl extends BatteryStats {
     }
 
     public void noteSyncFinishLocked(String name, int uid) {
+        noteSyncFinishLocked(name, uid, mClocks.elapsedRealtime(), mClocks.uptimeMillis());
+    }
+
+    public void noteSyncFinishLocked(String name, int uid, long elapsedRealtime,
+            long uptime) {
         uid = mapUid(uid);
-        final long elapsedRealtime = mClocks.elapsedRealtime();
-        final long uptime = mClocks.uptimeMillis();
         getUidStatsLocked(uid).noteStopSyncLocked(name, elapsedRealtime);
         if (!mActiveEvents.updateState(HistoryItem.EVENT_SYNC_FINISH, name, uid, 0)) {
             return;
@@ -3756,9 +3769,12 @@ public class BatteryStatsImpl extends BatteryStats {
     }
 
     public void noteJobStartLocked(String name, int uid) {
+        noteJobStartLocked(name, uid, mClocks.elapsedRealtime(), mClocks.uptimeMillis());
+    }
+
+    public void noteJobStartLocked(String name, int uid, long elapsedRealtime,
+            long uptime) {
         uid = mapUid(uid);
-        final long elapsedRealtime = mClocks.elapsedRealtime();
-        final long uptime = mClocks.uptimeMillis();
         getUidStatsLocked(uid).noteStartJobLocked(name, elapsedRealtime);
         if (!mActiveEvents.updateState(HistoryItem.EVENT_JOB_START, name, uid, 0)) {
             return;
@@ -3767,9 +3783,13 @@ public class BatteryStatsImpl extends BatteryStats {
     }
 
     public void noteJobFinishLocked(String name, int uid, int stopReason) {
+        noteJobFinishLocked(name, uid, stopReason,
+                mClocks.elapsedRealtime(), mClocks.uptimeMillis());
+    }
+
+    public void noteJobFinishLocked(String name, int uid, int stopReason, long elapsedRealtime,
+            long uptime) {
         uid = mapUid(uid);
-        final long elapsedRealtime = mClocks.elapsedRealtime();
-        final long uptime = mClocks.uptimeMillis();
         getUidStatsLocked(uid).noteStopJobLocked(name, elapsedRealtime, stopReason);
         if (!mActiveEvents.updateState(HistoryItem.EVENT_JOB_FINISH, name, uid, 0)) {
             return;
@@ -3778,12 +3798,15 @@ public class BatteryStatsImpl extends BatteryStats {
     }
 
     public void noteAlarmStartLocked(String name, int uid) {
+        noteAlarmStartLocked(name, uid, mClocks.elapsedRealtime(), mClocks.uptimeMillis());
+    }
+
+    public void noteAlarmStartLocked(String name, int uid, long elapsedRealtime,
+            long uptime) {
         if (!mRecordAllHistory) {
             return;
         }
         uid = mapUid(uid);
-        final long elapsedRealtime = mClocks.elapsedRealtime();
-        final long uptime = mClocks.uptimeMillis();
         if (!mActiveEvents.updateState(HistoryItem.EVENT_ALARM_START, name, uid, 0)) {
             return;
         }
@@ -3791,12 +3814,15 @@ public class BatteryStatsImpl extends BatteryStats {
     }
 
     public void noteAlarmFinishLocked(String name, int uid) {
+        noteAlarmFinishLocked(name, uid, mClocks.elapsedRealtime(), mClocks.uptimeMillis());
+    }
+
+    public void noteAlarmFinishLocked(String name, int uid, long elapsedRealtime,
+            long uptime) {
         if (!mRecordAllHistory) {
             return;
         }
         uid = mapUid(uid);
-        final long elapsedRealtime = mClocks.elapsedRealtime();
-        final long uptime = mClocks.uptimeMillis();
         if (!mActiveEvents.updateState(HistoryItem.EVENT_ALARM_FINISH, name, uid, 0)) {
             return;
         }
@@ -3958,8 +3984,13 @@ public class BatteryStatsImpl extends BatteryStats {
 
     public void noteStartWakeFromSourceLocked(WorkSource ws, int pid, String name,
             String historyName, int type, boolean unimportantForLogging) {
-        final long elapsedRealtime = mClocks.elapsedRealtime();
-        final long uptime = mClocks.uptimeMillis();
+        noteStartWakeFromSourceLocked(ws, pid, name, historyName, type, unimportantForLogging,
+                mClocks.elapsedRealtime(), mClocks.uptimeMillis());
+    }
+
+    public void noteStartWakeFromSourceLocked(WorkSource ws, int pid, String name,
+            String historyName, int type, boolean unimportantForLogging, long elapsedRealtime,
+            long uptime) {
         final int N = ws.size();
         for (int i=0; i<N; i++) {
             noteStartWakeLocked(ws.get(i), pid, name, historyName, type, unimportantForLogging,
@@ -3970,8 +4001,15 @@ public class BatteryStatsImpl extends BatteryStats {
     public void noteChangeWakelockFromSourceLocked(WorkSource ws, int pid, String name,
             String historyName, int type, WorkSource newWs, int newPid, String newName,
             String newHistoryName, int newType, boolean newUnimportantForLogging) {
-        final long elapsedRealtime = mClocks.elapsedRealtime();
-        final long uptime = mClocks.uptimeMillis();
+        noteChangeWakelockFromSourceLocked(ws, pid, name, historyName, type, newWs, newPid,
+                newName, newHistoryName, newType, newUnimportantForLogging,
+                mClocks.elapsedRealtime(), mClocks.uptimeMillis());
+    }
+
+    public void noteChangeWakelockFromSourceLocked(WorkSource ws, int pid, String name,
+            String historyName, int type, WorkSource newWs, int newPid, String newName,
+            String newHistoryName, int newType, boolean newUnimportantForLogging,
+            long elapsedRealtime, long uptime) {
         // For correct semantics, we start the need worksources first, so that we won't
         // make inappropriate history items as if all wake locks went away and new ones
         // appeared.  This is okay because tracking of wake locks allows nesting.
@@ -3988,8 +4026,12 @@ public class BatteryStatsImpl extends BatteryStats {
 
     public void noteStopWakeFromSourceLocked(WorkSource ws, int pid, String name,
             String historyName, int type) {
-        final long elapsedRealtime = mClocks.elapsedRealtime();
-        final long uptime = mClocks.uptimeMillis();
+        noteStopWakeFromSourceLocked(ws, pid, name, historyName, type,
+                mClocks.elapsedRealtime(), mClocks.uptimeMillis());
+    }
+
+    public void noteStopWakeFromSourceLocked(WorkSource ws, int pid, String name,
+            String historyName, int type, long elapsedRealtime, long uptime) {
         final int N = ws.size();
         for (int i=0; i<N; i++) {
             noteStopWakeLocked(ws.get(i), pid, name, historyName, type, elapsedRealtime, uptime);
@@ -3997,9 +4039,13 @@ public class BatteryStatsImpl extends BatteryStats {
     }
 
     public void noteLongPartialWakelockStart(String name, String historyName, int uid) {
+        noteLongPartialWakelockStart(name, historyName, uid,
+                mClocks.elapsedRealtime(), mClocks.uptimeMillis());
+    }
+
+    public void noteLongPartialWakelockStart(String name, String historyName, int uid,
+            long elapsedRealtime, long uptime) {
         uid = mapUid(uid);
-        final long elapsedRealtime = mClocks.elapsedRealtime();
-        final long uptime = mClocks.uptimeMillis();
         if (historyName == null) {
             historyName = name;
         }
@@ -4012,9 +4058,13 @@ public class BatteryStatsImpl extends BatteryStats {
     }
 
     public void noteLongPartialWakelockFinish(String name, String historyName, int uid) {
+        noteLongPartialWakelockFinish(name, historyName, uid,
+                mClocks.elapsedRealtime(), mClocks.uptimeMillis());
+    }
+
+    public void noteLongPartialWakelockFinish(String name, String historyName, int uid,
+            long elapsedRealtime, long uptime) {
         uid = mapUid(uid);
-        final long elapsedRealtime = mClocks.elapsedRealtime();
-        final long uptime = mClocks.uptimeMillis();
         if (historyName == null) {
             historyName = name;
         }
@@ -9699,7 +9749,46 @@ public class BatteryStatsImpl extends BatteryStats {
         }
     }
 
+    /**
+     * Events posted with {@link #postEvent} that have not been applied yet. Posting does not
+     * take the lock, so producers never wait on readers or on each other.
+     */
+    private final ConcurrentLinkedQueue<Runnable> mPendingEvents = new ConcurrentLinkedQueue<>();
+
+    /** Set while {@link #applyPendingEventsLocked} runs, so nested calls return at once. */
+    private boolean mApplyingPendingEvents;
+
+    /**
+     * Queues a note to be applied later with the lock held, in the order events are posted.
+     * The event must carry the times of the original call, as it may run some time later.
+     * The caller is expected to arrange for {@link #applyPendingEventsLocked} to run soon;
+     * until then, the events are applied before the stats are written, dumped or parceled,
+     * before cpu time is distributed, before a time base changes, and before a uid is removed.
+     */
+    public void postEvent(Runnable event) {
+        mPendingEvents.add(event);
+    }
+
+    /**
+     * Applies all events queued by {@link #postEvent}, oldest first.
+     */
+    public void applyPendingEventsLocked() {
+        if (mApplyingPendingEvents) {
+            return;
+        }
+        mApplyingPendingEvents = true;
+        try {
+            Runnable event;
+            while ((event = mPendingEvents.poll()) != null) {
+                event.run();
+            }
+        } finally {
+            mApplyingPendingEvents = false;
+        }
+    }
+
     public void pullPendingStateUpdatesLocked() {
+        applyPendingEventsLocked();
         if (mOnBatteryInternal) {
             updateDischargeScreenLevelsLocked(mScreenState, mScreenState);
         }
@@ -10461,6 +10550,7 @@ public class BatteryStatsImpl extends BatteryStats {
      * wakelocks. If the screen is on, we just assign the actual cpu time an app used.
      */
     public void updateCpuTimeLocked(boolean updateCpuFreqData) {
+        applyPendingEventsLocked();
         if (mPowerProfile == null) {
             return;
         }
@@ -11440,6 +11530,7 @@ public class BatteryStatsImpl extends BatteryStats {
     }
 
     public void onUserRemovedLocked(int userId) {
+        applyPendingEventsLocked();
         final int firstUidForUser = UserHandle.getUid(userId, 0);
         final int lastUidForUser = UserHandle.getUid(userId, UserHandle.PER_USER_RANGE - 1);
         mUidStats.put(firstUidForUser, null);
@@ -11453,6 +11544,7 @@ public class BatteryStatsImpl extends BatteryStats {
      * Remove the statistics object for a particular uid.
      */
     public void removeUidStatsLocked(int uid) {
+        applyPendingEventsLocked();
         mKernelUidCpuTimeReader.removeUid(uid);
         mKernelUidCpuFreqTimeReader.removeUid(uid);
         mUidStats.remove(uid);
@@ -11497,6 +11589,29 @@ public class BatteryStatsImpl extends BatteryStats {
     Parcel mPendingWrite = null;
     final ReentrantLock mWriteLock = new ReentrantLock();
 
+    /**
+     * Set while an asynchronous write is posted but has not yet serialized the stats.
+     * Further async requests in that window are folded into the posted one.
+     */
+    boolean mAsyncWriteScheduled;
+
+    private final Runnable mAsyncWriteRunnable = new Runnable() {
+        @Override public void run() {
+            synchronized (BatteryStatsImpl.this) {
+                if (!mAsyncWriteScheduled) {
+                    // A sync write already went out with everything this one would have had.
+                    return;
+                }
+                mAsyncWriteScheduled = false;
+                if (mShuttingDown) {
+                    return;
+                }
+                preparePendingWriteLocked();
+            }
+            commitPendingDataToDisk();
+        }
+    };
+
     public void writeAsyncLocked() {
         writeLocked(false);
     }
@@ -11515,24 +11630,32 @@ public class BatteryStatsImpl extends BatteryStats {
             return;
         }
 
-        Parcel out = Parcel.obtain();
-        writeSummaryToParcel(out, true);
         mLastWriteTime = mClocks.elapsedRealtime();
 
-        if (mPendingWrite != null) {
-            mPendingWrite.recycle();
-        }
-        mPendingWrite = out;
-
         if (sync) {
+            mAsyncWriteScheduled = false;
+            preparePendingWriteLocked();
             commitPendingDataToDisk();
+        } else if (!mAsyncWriteScheduled) {
+            // The summary, including the whole history buffer, is only serialized once the
+            // background thread gets to it, so a burst of requests costs a single copy.
+            mAsyncWriteScheduled = true;
+            BackgroundThread.getHandler().post(mAsyncWriteRunnable);
+        }
+    }
+
+    private void preparePendingWriteLocked() {
+        final Parcel out;
+        if (mPendingWrite != null) {
+            // The previous snapshot never made it to disk; reuse its storage for this one.
+            out = mPendingWrite;
+            out.setDataSize(0);
+            out.setDataPosition(0);
         } else {
-            BackgroundThread.getHandler().post(new Runnable() {
-                @Override public void run() {
-                    commitPendingDataToDisk();
-                }
-            });
+            out = Parcel.obtain();
         }
+        writeSummaryToParcel(out, true);
+        mPendingWrite = out;
     }
 
     public void commitPendingDataToDisk() {
@@ -0,0 +1,482 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import static com.android.internal.util.BinaryXmlSerializer.INTERNED_NONE;
+import static com.android.internal.util.BinaryXmlSerializer.PROTOCOL_MAGIC;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Implementation of {@link XmlPullParser} that reads the binary token stream written by
+ * {@link BinaryXmlSerializer}.
+ * <p>
+ * {@link #next()} reports the same events a text parser would for the same document, except
+ * that adjacent text tokens are not merged and empty element tags are reported as separate
+ * start and end tags. Namespaces are not supported.
+ *
+ * @hide
+ */
+public class BinaryXmlPullParser implements XmlPullParser {
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    /** Longest string accepted, in bytes; anything longer means the stream is corrupt. */
+    private static final int MAX_STRING_LENGTH = 16 * 1024 * 1024;
+
+    private DataInputStream mIn;
+
+    private final ArrayList<String> mInterned = new ArrayList<>();
+
+    private int mEventType = START_DOCUMENT;
+    private String mText;
+
+    private String[] mTagNames = new String[8];
+    private int mDepth;
+
+    private String[] mAttributes = new String[16];
+    private int mAttributeCount;
+
+    /**
+     * Returns whether {@code in} starts with the binary XML header. The stream must support
+     * {@link InputStream#mark}; its position is left unchanged.
+     */
+    public static boolean isBinaryXml(InputStream in) throws IOException {
+        final byte[] header = new byte[PROTOCOL_MAGIC.length];
+        in.mark(header.length);
+        try {
+            int read = 0;
+            while (read < header.length) {
+                final int n = in.read(header, read, header.length - read);
+                if (n < 0) {
+                    return false;
+                }
+                read += n;
+            }
+            return Arrays.equals(header, PROTOCOL_MAGIC);
+        } finally {
+            in.reset();
+        }
+    }
+
+    @Override
+    public void setInput(InputStream is, String encoding) throws XmlPullParserException {
+        if (encoding != null && !StandardCharsets.UTF_8.name().equalsIgnoreCase(encoding)) {
+            throw new XmlPullParserException("Unsupported encoding " + encoding);
+        }
+        mIn = new DataInputStream(new BufferedInputStream(is, BUFFER_SIZE));
+        mInterned.clear();
+        mEventType = START_DOCUMENT;
+        mText = null;
+        mDepth = 0;
+        mAttributeCount = 0;
+        try {
+            final byte[] header = new byte[PROTOCOL_MAGIC.length];
+            mIn.readFully(header);
+            if (!Arrays.equals(header, PROTOCOL_MAGIC)) {
+                throw new XmlPullParserException("Not a binary XML stream");
+            }
+        } catch (IOException e) {
+            throw new XmlPullParserException("Unable to read header", this, e);
+        }
+    }
+
+    @Override
+    public void setInput(Reader in) throws XmlPullParserException {
+        throw new UnsupportedOperationException("Binary XML can only be read from a stream");
+    }
+
+    @Override
+    public void setFeature(String name, boolean state) throws XmlPullParserException {
+        if (state) {
+            throw new XmlPullParserException("Unsupported feature " + name);
+        }
+    }
+
+    @Override
+    public boolean getFeature(String name) {
+        return false;
+    }
+
+    @Override
+    public void setProperty(String name, Object value) throws XmlPullParserException {
+        throw new XmlPullParserException("Unsupported property " + name);
+    }
+
+    @Override
+    public Object getProperty(String name) {
+        return null;
+    }
+
+    @Override
+    public String getInputEncoding() {
+        return StandardCharsets.UTF_8.name();
+    }
+
+    @Override
+    public void defineEntityReplacementText(String entityName, String replacementText) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int next() throws XmlPullParserException, IOException {
+        while (true) {
+            final int token = nextToken();
+            switch (token) {
+                case START_TAG:
+                case END_TAG:
+                case END_DOCUMENT:
+                    return token;
+                case TEXT:
+                case CDSECT:
+                case ENTITY_REF:
+                    mEventType = TEXT;
+                    return TEXT;
+                default:
+                    // Comments, processing instructions and the like are not reported.
+                    break;
+            }
+        }
+    }
+
+    @Override
+    public int nextToken() throws XmlPullParserException, IOException {
+        if (mEventType == END_TAG) {
+            mDepth--;
+        } else if (mEventType == END_DOCUMENT) {
+            return END_DOCUMENT;
+        }
+        mText = null;
+        mAttributeCount = 0;
+
+        final int token;
+        try {
+            token = mIn.readByte();
+        } catch (EOFException e) {
+            throw new XmlPullParserException("Unexpected end of stream", this, e);
+        }
+        switch (token) {
+            case START_DOCUMENT:
+                // Nothing to report; the parser starts out in this state.
+                return nextToken();
+            case END_DOCUMENT:
+                if (mDepth != 0) {
+                    throw new XmlPullParserException("Unclosed tags at end of document",
+                            this, null);
+                }
+                break;
+            case START_TAG:
+                readStartTag();
+                break;
+            case END_TAG:
+                if (mDepth == 0) {
+                    throw new XmlPullParserException("Unbalanced end tag", this, null);
+                }
+                break;
+            case TEXT:
+            case CDSECT:
+            case ENTITY_REF:
+            case IGNORABLE_WHITESPACE:
+            case PROCESSING_INSTRUCTION:
+            case COMMENT:
+            case DOCDECL:
+                mText = readString();
+                break;
+            default:
+                throw new XmlPullParserException("Unknown token " + token, this, null);
+        }
+        mEventType = token;
+        return token;
+    }
+
+    private void readStartTag() throws IOException, XmlPullParserException {
+        if (mDepth == mTagNames.length) {
+            mTagNames = Arrays.copyOf(mTagNames, mDepth * 2);
+        }
+        mTagNames[mDepth++] = readInterned();
+        final int count = mIn.readUnsignedShort();
+        if (count * 2 > mAttributes.length) {
+            mAttributes = new String[count * 2];
+        }
+        for (int i = 0; i < count; i++) {
+            mAttributes[i * 2] = readInterned();
+            mAttributes[i * 2 + 1] = readString();
+        }
+        mAttributeCount = count;
+    }
+
+    private String readInterned() throws IOException, XmlPullParserException {
+        final int index = mIn.readUnsignedShort();
+        if (index == INTERNED_NONE) {
+            final String name = mIn.readUTF();
+            if (mInterned.size() < INTERNED_NONE) {
+                mInterned.add(name);
+            }
+            return name;
+        }
+        if (index >= mInterned.size()) {
+            throw new XmlPullParserException("Invalid interned name " + index, this, null);
+        }
+        return mInterned.get(index);
+    }
+
+    private String readString() throws IOException, XmlPullParserException {
+        final int length = mIn.readInt();
+        if (length < 0 || length > MAX_STRING_LENGTH) {
+            throw new XmlPullParserException("Invalid string length " + length, this, null);
+        }
+        if (length <= BUFFER_SIZE) {
+            final byte[] bytes = new byte[length];
+            mIn.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        // Grow with the data actually present, so a corrupt length in a truncated file hits
+        // EOF instead of allocating the full claimed size up front.
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(BUFFER_SIZE);
+        final byte[] chunk = new byte[BUFFER_SIZE];
+        int remaining = length;
+        while (remaining > 0) {
+            final int count = Math.min(remaining, chunk.length);
+            mIn.readFully(chunk, 0, count);
+            out.write(chunk, 0, count);
+            remaining -= count;
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public int getEventType() {
+        return mEventType;
+    }
+
+    @Override
+    public int getDepth() {
+        return mDepth;
+    }
+
+    @Override
+    public String getPositionDescription() {
+        return "Binary XML event " + TYPES[mEventType] + " at depth " + mDepth;
+    }
+
+    @Override
+    public int getLineNumber() {
+        return -1;
+    }
+
+    @Override
+    public int getColumnNumber() {
+        return -1;
+    }
+
+    @Override
+    public boolean isWhitespace() throws XmlPullParserException {
+        switch (mEventType) {
+            case IGNORABLE_WHITESPACE:
+                return true;
+            case TEXT:
+            case CDSECT:
+                return mText.trim().isEmpty();
+            default:
+                throw new XmlPullParserException("Not applicable for " + TYPES[mEventType],
+                        this, null);
+        }
+    }
+
+    @Override
+    public String getText() {
+        if (mEventType == START_TAG || mEventType == END_TAG) {
+            return null;
+        }
+        return mText;
+    }
+
+    @Override
+    public char[] getTextCharacters(int[] holderForStartAndLength) {
+        final String text = getText();
+        if (text == null) {
+            holderForStartAndLength[0] = -1;
+            holderForStartAndLength[1] = -1;
+            return null;
+        }
+        holderForStartAndLength[0] = 0;
+        holderForStartAndLength[1] = text.length();
+        return text.toCharArray();
+    }
+
+    @Override
+    public String getNamespace() {
+        return (mEventType == START_TAG || mEventType == END_TAG) ? NO_NAMESPACE : null;
+    }
+
+    @Override
+    public String getName() {
+        if (mEventType == START_TAG || mEventType == END_TAG) {
+            return mTagNames[mDepth - 1];
+        }
+        return (mEventType == ENTITY_REF) ? mText : null;
+    }
+
+    @Override
+    public String getPrefix() {
+        return null;
+    }
+
+    @Override
+    public boolean isEmptyElementTag() throws XmlPullParserException {
+        if (mEventType != START_TAG) {
+            throw new XmlPullParserException("Not at a start tag", this, null);
+        }
+        return false;
+    }
+
+    @Override
+    public int getNamespaceCount(int depth) {
+        return 0;
+    }
+
+    @Override
+    public String getNamespacePrefix(int pos) {
+        throw new IndexOutOfBoundsException();
+    }
+
+    @Override
+    public String getNamespaceUri(int pos) {
+        throw new IndexOutOfBoundsException();
+    }
+
+    @Override
+    public String getNamespace(String prefix) {
+        return null;
+    }
+
+    @Override
+    public int getAttributeCount() {
+        return (mEventType == START_TAG) ? mAttributeCount : -1;
+    }
+
+    @Override
+    public String getAttributeNamespace(int index) {
+        checkAttributeIndex(index);
+        return NO_NAMESPACE;
+    }
+
+    @Override
+    public String getAttributeName(int index) {
+        checkAttributeIndex(index);
+        return mAttributes[index * 2];
+    }
+
+    @Override
+    public String getAttributePrefix(int index) {
+        checkAttributeIndex(index);
+        return null;
+    }
+
+    @Override
+    public String getAttributeType(int index) {
+        checkAttributeIndex(index);
+        return "CDATA";
+    }
+
+    @Override
+    public boolean isAttributeDefault(int index) {
+        checkAttributeIndex(index);
+        return false;
+    }
+
+    @Override
+    public String getAttributeValue(int index) {
+        checkAttributeIndex(index);
+        return mAttributes[index * 2 + 1];
+    }
+
+    @Override
+    public String getAttributeValue(String namespace, String name) {
+        if (namespace != null && !namespace.isEmpty()) {
+            return null;
+        }
+        for (int i = 0; i < mAttributeCount; i++) {
+            if (mAttributes[i * 2].equals(name)) {
+                return mAttributes[i * 2 + 1];
+            }
+        }
+        return null;
+    }
+
+    private void checkAttributeIndex(int index) {
+        if (mEventType != START_TAG || index < 0 || index >= mAttributeCount) {
+            throw new IndexOutOfBoundsException("Invalid attribute index " + index);
+        }
+    }
+
+    @Override
+    public void require(int type, String namespace, String name)
+            throws XmlPullParserException {
+        if (type != mEventType
+                || (namespace != null && !namespace.equals(getNamespace()))
+                || (name != null && !name.equals(getName()))) {
+            throw new XmlPullParserException("Expected " + TYPES[type] + " but was "
+                    + getPositionDescription(), this, null);
+        }
+    }
+
+    @Override
+    public String nextText() throws XmlPullParserException, IOException {
+        if (mEventType != START_TAG) {
+            throw new XmlPullParserException("Precondition: START_TAG", this, null);
+        }
+        int eventType = next();
+        if (eventType == TEXT) {
+            final StringBuilder result = new StringBuilder(mText);
+            while ((eventType = next()) == TEXT) {
+                result.append(mText);
+            }
+            if (eventType != END_TAG) {
+                throw new XmlPullParserException("Expected END_TAG after text", this, null);
+            }
+            return result.toString();
+        } else if (eventType == END_TAG) {
+            return "";
+        } else {
+            throw new XmlPullParserException("Expected TEXT or END_TAG", this, null);
+        }
+    }
+
+    @Override
+    public int nextTag() throws XmlPullParserException, IOException {
+        int eventType = next();
+        if (eventType == TEXT && isWhitespace()) {
+            eventType = next();
+        }
+        if (eventType != START_TAG && eventType != END_TAG) {
+            throw new XmlPullParserException("Expected START_TAG or END_TAG", this, null);
+        }
+        return eventType;
+    }
+}
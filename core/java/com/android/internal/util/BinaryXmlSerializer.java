@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Implementation of {@link XmlSerializer} that writes a compact binary token stream instead
+ * of XML text. The output can be read back with {@link BinaryXmlPullParser}; use
+ * {@link XmlUtils#resolvePullParser} to read a stream that may be in either format.
+ * <p>
+ * Every token starts with a single byte holding its {@link XmlPullParser} event type. Tag
+ * and attribute names are interned: the first occurrence is written inline and later
+ * occurrences are written as a two byte index. Text and attribute values are written as
+ * length-prefixed UTF-8, so nothing needs escaping on write or entity decoding on read.
+ * <p>
+ * Namespaces are not supported.
+ *
+ * @hide
+ */
+public class BinaryXmlSerializer implements XmlSerializer {
+    /**
+     * Magic header written at the start of every binary stream: "XBT" followed by version.
+     * This is deliberately not "ABX", which other binary XML encodings use, so that neither
+     * reader mistakes the other's files for its own.
+     */
+    static final byte[] PROTOCOL_MAGIC = new byte[] { 0x58, 0x42, 0x54, 0x01 };
+
+    /** Index used for a name that has not been interned yet and follows inline. */
+    static final int INTERNED_NONE = 0xffff;
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private DataOutputStream mOut;
+
+    private final HashMap<String, Integer> mInterned = new HashMap<>();
+
+    private final ArrayList<String> mTagNames = new ArrayList<>();
+
+    /** Start tag whose attributes are still being collected, or {@code null}. */
+    private String mPendingTag;
+    private final ArrayList<String> mPendingAttributes = new ArrayList<>();
+
+    @Override
+    public void setOutput(OutputStream os, String encoding) throws IOException {
+        if (encoding != null && !StandardCharsets.UTF_8.name().equalsIgnoreCase(encoding)) {
+            throw new UnsupportedOperationException("Unsupported encoding " + encoding);
+        }
+        mOut = new DataOutputStream(new BufferedOutputStream(os, BUFFER_SIZE));
+        mOut.write(PROTOCOL_MAGIC);
+        mInterned.clear();
+        mTagNames.clear();
+        mPendingTag = null;
+        mPendingAttributes.clear();
+    }
+
+    @Override
+    public void setOutput(Writer writer) {
+        throw new UnsupportedOperationException("Binary XML can only be written to a stream");
+    }
+
+    @Override
+    public void setFeature(String name, boolean state) {
+        // Features such as indentation have no meaning for the binary format.
+    }
+
+    @Override
+    public boolean getFeature(String name) {
+        return false;
+    }
+
+    @Override
+    public void setProperty(String name, Object value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Object getProperty(String name) {
+        return null;
+    }
+
+    @Override
+    public void setPrefix(String prefix, String namespace) {
+        throw new UnsupportedOperationException("Namespaces are not supported");
+    }
+
+    @Override
+    public String getPrefix(String namespace, boolean generatePrefix) {
+        throw new UnsupportedOperationException("Namespaces are not supported");
+    }
+
+    @Override
+    public int getDepth() {
+        return mTagNames.size();
+    }
+
+    @Override
+    public String getNamespace() {
+        return XmlPullParser.NO_NAMESPACE;
+    }
+
+    @Override
+    public String getName() {
+        final int depth = mTagNames.size();
+        return depth > 0 ? mTagNames.get(depth - 1) : null;
+    }
+
+    @Override
+    public void startDocument(String encoding, Boolean standalone) throws IOException {
+        mOut.writeByte(XmlPullParser.START_DOCUMENT);
+    }
+
+    @Override
+    public void endDocument() throws IOException {
+        flushPendingTag();
+        mOut.writeByte(XmlPullParser.END_DOCUMENT);
+        mOut.flush();
+    }
+
+    @Override
+    public XmlSerializer startTag(String namespace, String name) throws IOException {
+        checkNamespace(namespace);
+        flushPendingTag();
+        mPendingTag = name;
+        mTagNames.add(name);
+        return this;
+    }
+
+    @Override
+    public XmlSerializer attribute(String namespace, String name, String value)
+            throws IOException {
+        checkNamespace(namespace);
+        if (mPendingTag == null) {
+            throw new IllegalStateException("Attribute " + name + " outside of a start tag");
+        }
+        if (value == null) {
+            throw new IllegalArgumentException("Attribute " + name + " has a null value");
+        }
+        mPendingAttributes.add(name);
+        mPendingAttributes.add(value);
+        return this;
+    }
+
+    @Override
+    public XmlSerializer endTag(String namespace, String name) throws IOException {
+        checkNamespace(namespace);
+        flushPendingTag();
+        final int depth = mTagNames.size();
+        if (depth == 0 || !mTagNames.get(depth - 1).equals(name)) {
+            throw new IllegalArgumentException("End tag " + name + " does not match "
+                    + getName());
+        }
+        mTagNames.remove(depth - 1);
+        mOut.writeByte(XmlPullParser.END_TAG);
+        return this;
+    }
+
+    @Override
+    public XmlSerializer text(String text) throws IOException {
+        writeToken(XmlPullParser.TEXT, text);
+        return this;
+    }
+
+    @Override
+    public XmlSerializer text(char[] buf, int start, int len) throws IOException {
+        writeToken(XmlPullParser.TEXT, new String(buf, start, len));
+        return this;
+    }
+
+    @Override
+    public void cdsect(String text) throws IOException {
+        writeToken(XmlPullParser.CDSECT, text);
+    }
+
+    @Override
+    public void entityRef(String text) throws IOException {
+        writeToken(XmlPullParser.ENTITY_REF, text);
+    }
+
+    @Override
+    public void processingInstruction(String text) throws IOException {
+        writeToken(XmlPullParser.PROCESSING_INSTRUCTION, text);
+    }
+
+    @Override
+    public void comment(String text) throws IOException {
+        writeToken(XmlPullParser.COMMENT, text);
+    }
+
+    @Override
+    public void docdecl(String text) throws IOException {
+        writeToken(XmlPullParser.DOCDECL, text);
+    }
+
+    @Override
+    public void ignorableWhitespace(String text) throws IOException {
+        writeToken(XmlPullParser.IGNORABLE_WHITESPACE, text);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushPendingTag();
+        mOut.flush();
+    }
+
+    private void writeToken(int token, String text) throws IOException {
+        flushPendingTag();
+        mOut.writeByte(token);
+        writeString(text);
+    }
+
+    /**
+     * Writes the pending start tag with all of its attributes, which have to be known
+     * before the tag can be written.
+     */
+    private void flushPendingTag() throws IOException {
+        if (mPendingTag == null) {
+            return;
+        }
+        mOut.writeByte(XmlPullParser.START_TAG);
+        writeInterned(mPendingTag);
+        final int count = mPendingAttributes.size() / 2;
+        mOut.writeShort(count);
+        for (int i = 0; i < count; i++) {
+            writeInterned(mPendingAttributes.get(i * 2));
+            writeString(mPendingAttributes.get(i * 2 + 1));
+        }
+        mPendingTag = null;
+        mPendingAttributes.clear();
+    }
+
+    private void writeInterned(String name) throws IOException {
+        final Integer index = mInterned.get(name);
+        if (index != null) {
+            mOut.writeShort(index);
+            return;
+        }
+        mOut.writeShort(INTERNED_NONE);
+        mOut.writeUTF(name);
+        if (mInterned.size() < INTERNED_NONE) {
+            mInterned.put(name, mInterned.size());
+        }
+    }
+
+    private void writeString(String text) throws IOException {
+        final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        mOut.writeInt(bytes.length);
+        mOut.write(bytes);
+    }
+
+    private static void checkNamespace(String namespace) {
+        if (namespace != null && !namespace.isEmpty()) {
+            throw new IllegalArgumentException("Namespaces are not supported");
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import android.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Utility methods for skipping the rewrite of a file whose new contents are the same as the
+ * contents last written to it.
+ *
+ * @hide
+ */
+public class DigestUtils {
+    private static final String TAG = "DigestUtils";
+
+    private DigestUtils() {
+    }
+
+    /**
+     * Returns a SHA-256 digest of {@code contents}, or {@code null} if no digest is available,
+     * in which case callers should always write the file.
+     */
+    public static @Nullable byte[] computeDigest(byte[] contents) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(contents);
+        } catch (NoSuchAlgorithmException e) {
+            Log.w(TAG, "Unable to compute digest", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns whether writing contents with the given digest to {@code file} can be skipped:
+     * the digest is known, it matches the digest of the contents last written, and the file is
+     * still there.
+     *
+     * @param digest digest of the new contents, from {@link #computeDigest}
+     * @param lastDigest digest of the contents last written to {@code file} successfully, or
+     *            {@code null} if unknown
+     */
+    public static boolean isUnchanged(@Nullable byte[] digest, @Nullable byte[] lastDigest,
+            File file) {
+        return digest != null && Arrays.equals(digest, lastDigest) && file.exists();
+    }
+}
@@ -29,6 +29,7 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -193,6 +194,55 @@ public class XmlUtils {
         serializer.endDocument();
     }
 
+    /**
+     * Flatten a Map into an output stream, either as XML or, when {@code binary} is set, in
+     * the more compact format of {@link BinaryXmlSerializer}.  The map can later be read
+     * back with readMapXml(), which accepts either format.
+     *
+     * @param val The map to be flattened.
+     * @param out Where to write the data.
+     * @param binary Whether to use the binary format.
+     *
+     * @see #writeMapXml(Map, OutputStream)
+     * @see #readMapXml
+     */
+    public static final void writeMapXml(Map val, OutputStream out, boolean binary)
+            throws XmlPullParserException, java.io.IOException {
+        if (!binary) {
+            writeMapXml(val, out);
+            return;
+        }
+        XmlSerializer serializer = new BinaryXmlSerializer();
+        serializer.setOutput(out, StandardCharsets.UTF_8.name());
+        serializer.startDocument(null, true);
+        writeMapXml(val, null, serializer);
+        serializer.endDocument();
+    }
+
+    /**
+     * Returns a parser positioned at the start of {@code in}, which may contain either XML
+     * text or the binary format written by {@link BinaryXmlSerializer}.
+     *
+     * @param in The InputStream from which to read.
+     * @param encoding Encoding to use if the stream holds XML text, or {@code null} to
+     *                 detect it from the document.
+     */
+    public static XmlPullParser resolvePullParser(InputStream in, String encoding)
+            throws XmlPullParserException, java.io.IOException {
+        if (!in.markSupported()) {
+            in = new BufferedInputStream(in);
+        }
+        final XmlPullParser parser;
+        if (BinaryXmlPullParser.isBinaryXml(in)) {
+            parser = new BinaryXmlPullParser();
+            parser.setInput(in, StandardCharsets.UTF_8.name());
+        } else {
+            parser = Xml.newPullParser();
+            parser.setInput(in, encoding);
+        }
+        return parser;
+    }
+
     /**
      * Flatten a List into an output stream as XML.  The list can later be
      * read back with readListXml().
@@ -735,8 +785,7 @@ public class XmlUtils {
     public static final HashMap<String, ?> readMapXml(InputStream in)
     throws XmlPullParserException, java.io.IOException
     {
-        XmlPullParser   parser = Xml.newPullParser();
-        parser.setInput(in, StandardCharsets.UTF_8.name());
+        XmlPullParser   parser = resolvePullParser(in, StandardCharsets.UTF_8.name());
         return (HashMap<String, ?>) readValueXml(parser, new String[1]);
     }
 
@@ -756,8 +805,7 @@ public class XmlUtils {
     public static final ArrayList readListXml(InputStream in)
     throws XmlPullParserException, java.io.IOException
     {
-        XmlPullParser   parser = Xml.newPullParser();
-        parser.setInput(in, StandardCharsets.UTF_8.name());
+        XmlPullParser   parser = resolvePullParser(in, StandardCharsets.UTF_8.name());
         return (ArrayList)readValueXml(parser, new String[1]);
     }
     
@@ -779,8 +827,7 @@ public class XmlUtils {
      */
     public static final HashSet readSetXml(InputStream in)
             throws XmlPullParserException, java.io.IOException {
-        XmlPullParser parser = Xml.newPullParser();
-        parser.setInput(in, null);
+        XmlPullParser parser = resolvePullParser(in, null);
         return (HashSet) readValueXml(parser, new String[1]);
     }
 
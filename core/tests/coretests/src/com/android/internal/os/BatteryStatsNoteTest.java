@@ -101,6 +101,93 @@ public class BatteryStatsNoteTest extends TestCase{
         assertEquals(120_000, bgTime);
     }
 
+    /** Test BatteryStatsImpl.noteJobStartLocked with times captured before it is applied. */
+    @SmallTest
+    public void testNoteJobLocked_queuedTimes() throws Exception {
+        final MockClocks clocks = new MockClocks(); // holds realtime and uptime in ms
+        MockBatteryStatsImpl bi = new MockBatteryStatsImpl(clocks);
+        final String name = "job";
+
+        bi.updateTimeBasesLocked(true, Display.STATE_OFF, 0, 0);
+
+        // Events are applied later than they happened; the times they carry must win.
+        clocks.realtime = clocks.uptime = 500;
+        bi.noteJobStartLocked(name, UID, 100, 100);
+        clocks.realtime = clocks.uptime = 800;
+        bi.noteJobFinishLocked(name, UID, 0, 300, 300);
+
+        BatteryStats.Timer timer = bi.getUidStats().get(UID).getJobStats().get(name);
+        assertEquals(200_000, timer.getTotalTimeLocked(1_000_000, STATS_SINCE_CHARGED));
+        assertEquals(1, timer.getCountLocked(STATS_SINCE_CHARGED));
+    }
+
+    /** Test BatteryStatsImpl.postEvent and applyPendingEventsLocked. */
+    @SmallTest
+    public void testPostEvent_appliedInOrder() throws Exception {
+        final MockClocks clocks = new MockClocks(); // holds realtime and uptime in ms
+        MockBatteryStatsImpl bi = new MockBatteryStatsImpl(clocks);
+        final String name = "job";
+
+        bi.updateTimeBasesLocked(true, Display.STATE_OFF, 0, 0);
+
+        bi.postEvent(() -> bi.noteJobStartLocked(name, UID, 100, 100));
+        bi.postEvent(() -> bi.noteJobFinishLocked(name, UID, 0, 300, 300));
+        bi.postEvent(() -> bi.noteJobStartLocked(name, UID, 400, 400));
+        bi.postEvent(() -> bi.noteJobFinishLocked(name, UID, 0, 600, 600));
+        assertNull(bi.getUidStats().get(UID));
+
+        clocks.realtime = clocks.uptime = 1000;
+        bi.applyPendingEventsLocked();
+
+        BatteryStats.Timer timer = bi.getUidStats().get(UID).getJobStats().get(name);
+        assertEquals(400_000, timer.getTotalTimeLocked(1_000_000, STATS_SINCE_CHARGED));
+        assertEquals(2, timer.getCountLocked(STATS_SINCE_CHARGED));
+    }
+
+    /** Test that queued events are applied before the stats are pulled for writing. */
+    @SmallTest
+    public void testPostEvent_appliedBeforePull() throws Exception {
+        final MockClocks clocks = new MockClocks(); // holds realtime and uptime in ms
+        MockBatteryStatsImpl bi = new MockBatteryStatsImpl(clocks);
+        final String name = "job";
+
+        bi.updateTimeBasesLocked(true, Display.STATE_OFF, 0, 0);
+
+        bi.postEvent(() -> bi.noteJobStartLocked(name, UID, 100, 100));
+        bi.postEvent(() -> bi.noteJobFinishLocked(name, UID, 0, 300, 300));
+        bi.pullPendingStateUpdatesLocked();
+
+        BatteryStats.Timer timer = bi.getUidStats().get(UID).getJobStats().get(name);
+        assertEquals(200_000, timer.getTotalTimeLocked(1_000_000, STATS_SINCE_CHARGED));
+    }
+
+    /**
+     * Test that a large backlog is applied in full and in order, including when an event
+     * itself reaches a method that applies queued events.
+     */
+    @SmallTest
+    public void testPostEvent_largeBacklogNested() throws Exception {
+        final MockClocks clocks = new MockClocks(); // holds realtime and uptime in ms
+        MockBatteryStatsImpl bi = new MockBatteryStatsImpl(clocks);
+        final int count = 5000;
+        final ArrayList<Integer> applied = new ArrayList<>();
+
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            bi.postEvent(() -> {
+                applied.add(index);
+                if (index == count / 2) {
+                    bi.pullPendingStateUpdatesLocked();
+                }
+            });
+        }
+        bi.applyPendingEventsLocked();
+
+        assertEquals(count, applied.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, (int) applied.get(i));
+        }
+    }
 
     /** Test BatteryStatsImpl.noteUidProcessStateLocked. */
     @SmallTest
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import junit.framework.TestCase;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public final class BinaryXmlTest extends TestCase {
+    private static HashMap<String, Object> buildMap() {
+        final HashMap<String, Object> map = new HashMap<>();
+        map.put("int", 42);
+        map.put("long", 1L << 40);
+        map.put("bool", true);
+        map.put("string", "a < b & \"c\" é中");
+        map.put("null", null);
+        map.put("ints", new int[] { 1, 2, 3 });
+        final HashMap<String, Object> nested = new HashMap<>();
+        nested.put("float", 1.5f);
+        map.put("nested", nested);
+        return map;
+    }
+
+    private static void assertMapsEqual(Map<String, ?> expected, Map<String, ?> actual) {
+        assertEquals(expected.keySet(), actual.keySet());
+        for (String key : expected.keySet()) {
+            final Object e = expected.get(key);
+            final Object a = actual.get(key);
+            if (e instanceof int[]) {
+                assertTrue(key, Arrays.equals((int[]) e, (int[]) a));
+            } else {
+                assertEquals(key, e, a);
+            }
+        }
+    }
+
+    public void testMapRoundTrip_binary() throws Exception {
+        final HashMap<String, Object> map = buildMap();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XmlUtils.writeMapXml(map, out, true /* binary */);
+
+        final HashMap<String, ?> read = XmlUtils.readMapXml(
+                new ByteArrayInputStream(out.toByteArray()));
+        assertMapsEqual(map, read);
+    }
+
+    public void testMapRoundTrip_text() throws Exception {
+        final HashMap<String, Object> map = buildMap();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XmlUtils.writeMapXml(map, out, false /* binary */);
+
+        final HashMap<String, ?> read = XmlUtils.readMapXml(
+                new ByteArrayInputStream(out.toByteArray()));
+        assertMapsEqual(map, read);
+    }
+
+    public void testBinaryIsSmaller() throws Exception {
+        final HashMap<String, Object> map = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            map.put("key" + i, i);
+        }
+        final ByteArrayOutputStream text = new ByteArrayOutputStream();
+        XmlUtils.writeMapXml(map, text, false /* binary */);
+        final ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        XmlUtils.writeMapXml(map, binary, true /* binary */);
+        assertTrue(binary.size() < text.size());
+    }
+
+    public void testParserEvents() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final XmlSerializer serializer = new BinaryXmlSerializer();
+        serializer.setOutput(out, StandardCharsets.UTF_8.name());
+        serializer.startDocument(null, true);
+        serializer.startTag(null, "root");
+        serializer.attribute(null, "a", "1");
+        serializer.comment("ignored");
+        serializer.startTag(null, "child");
+        serializer.text("hello");
+        serializer.endTag(null, "child");
+        serializer.startTag(null, "child");
+        serializer.endTag(null, "child");
+        serializer.endTag(null, "root");
+        serializer.endDocument();
+
+        final XmlPullParser parser = XmlUtils.resolvePullParser(
+                new ByteArrayInputStream(out.toByteArray()), null);
+        assertTrue(parser instanceof BinaryXmlPullParser);
+        assertEquals(XmlPullParser.START_DOCUMENT, parser.getEventType());
+
+        assertEquals(XmlPullParser.START_TAG, parser.next());
+        assertEquals("root", parser.getName());
+        assertEquals(1, parser.getDepth());
+        assertEquals("1", parser.getAttributeValue(null, "a"));
+
+        assertEquals(XmlPullParser.START_TAG, parser.next());
+        assertEquals("child", parser.getName());
+        assertEquals(2, parser.getDepth());
+        assertEquals("hello", parser.nextText());
+        assertEquals(XmlPullParser.END_TAG, parser.getEventType());
+        assertEquals(2, parser.getDepth());
+
+        assertEquals(XmlPullParser.START_TAG, parser.nextTag());
+        assertEquals(0, parser.getAttributeCount());
+        assertEquals(XmlPullParser.END_TAG, parser.next());
+        assertEquals("child", parser.getName());
+
+        assertEquals(XmlPullParser.END_TAG, parser.next());
+        assertEquals("root", parser.getName());
+        assertEquals(1, parser.getDepth());
+        assertEquals(XmlPullParser.END_DOCUMENT, parser.next());
+        assertEquals(0, parser.getDepth());
+    }
+
+    /**
+     * Returns a document whose only text token claims {@code length} bytes, cut off right
+     * after the length field.
+     */
+    private static byte[] buildTruncatedText(int length) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final XmlSerializer serializer = new BinaryXmlSerializer();
+        serializer.setOutput(out, StandardCharsets.UTF_8.name());
+        serializer.startDocument(null, true);
+        serializer.startTag(null, "root");
+        serializer.text("hello");
+        serializer.endTag(null, "root");
+        serializer.endDocument();
+
+        final byte[] bytes = out.toByteArray();
+        final byte[] text = "hello".getBytes(StandardCharsets.UTF_8);
+        int textStart = -1;
+        for (int i = 0; i <= bytes.length - text.length; i++) {
+            if (Arrays.equals(text, Arrays.copyOfRange(bytes, i, i + text.length))) {
+                textStart = i;
+                break;
+            }
+        }
+        assertTrue(textStart >= 4);
+        final byte[] truncated = Arrays.copyOf(bytes, textStart);
+        ByteBuffer.wrap(truncated).putInt(textStart - 4, length);
+        return truncated;
+    }
+
+    private static void readAll(byte[] bytes) throws Exception {
+        final XmlPullParser parser = XmlUtils.resolvePullParser(
+                new ByteArrayInputStream(bytes), null);
+        assertTrue(parser instanceof BinaryXmlPullParser);
+        while (parser.next() != XmlPullParser.END_DOCUMENT) {
+        }
+    }
+
+    public void testOversizedStringRejected() throws Exception {
+        try {
+            readAll(buildTruncatedText(Integer.MAX_VALUE));
+            fail("Expected XmlPullParserException");
+        } catch (XmlPullParserException expected) {
+        }
+    }
+
+    public void testTruncatedStringHitsEof() throws Exception {
+        try {
+            readAll(buildTruncatedText(8 * 1024 * 1024));
+            fail("Expected EOFException");
+        } catch (EOFException expected) {
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public final class DigestUtilsTest extends TestCase {
+    public void testComputeDigest() {
+        final byte[] a = DigestUtils.computeDigest("a".getBytes(StandardCharsets.UTF_8));
+        assertEquals(32, a.length);
+        assertTrue(Arrays.equals(a,
+                DigestUtils.computeDigest("a".getBytes(StandardCharsets.UTF_8))));
+        assertFalse(Arrays.equals(a,
+                DigestUtils.computeDigest("b".getBytes(StandardCharsets.UTF_8))));
+    }
+
+    public void testIsUnchanged() throws Exception {
+        final byte[] a = DigestUtils.computeDigest("a".getBytes(StandardCharsets.UTF_8));
+        final byte[] b = DigestUtils.computeDigest("b".getBytes(StandardCharsets.UTF_8));
+        final File file = File.createTempFile("digest", null);
+        try {
+            assertTrue(DigestUtils.isUnchanged(a, a.clone(), file));
+            assertFalse(DigestUtils.isUnchanged(a, b, file));
+            assertFalse(DigestUtils.isUnchanged(a, null, file));
+            assertFalse(DigestUtils.isUnchanged(null, null, file));
+        } finally {
+            file.delete();
+        }
+        assertFalse(DigestUtils.isUnchanged(a, a, file));
+    }
+}
@@ -59,6 +59,7 @@ import android.util.Log;
 import android.util.Slog;
 import android.util.SparseArray;
 import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
 import android.util.SparseLongArray;
 import android.util.TimeUtils;
 
@@ -78,6 +79,7 @@ import java.util.Locale;
 import java.util.Random;
 import java.util.TimeZone;
 import java.util.TreeSet;
+import java.util.function.Predicate;
 
 import static android.app.AlarmManager.RTC_WAKEUP;
 import static android.app.AlarmManager.RTC;
@@ -85,6 +87,7 @@ import static android.app.AlarmManager.ELAPSED_REALTIME_WAKEUP;
 import static android.app.AlarmManager.ELAPSED_REALTIME;
 
 import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.DumpUtils;
 import com.android.internal.util.LocalLog;
 
@@ -159,6 +162,24 @@ class AlarmManagerService extends SystemService {
     long mAllowWhileIdleMinTime;
     int mNumTimeChanged;
 
+    // Bookkeeping about rebatching: full rebatches of every alarm, partial rebatches of only
+    // the batches alarms were removed from, and the alarms and time they took.
+    int mNumFullRebatches;
+    int mNumPartialRebatches;
+    long mNumRebatchedAlarms;
+    long mTotalRebatchTime;
+    long mMaxRebatchTime;
+
+    // Bookkeeping about delivery batches: each call to deliverAlarmsLocked sends one batch,
+    // sharing a single wakelock acquisition. Tracks the largest batch, and the most alarms
+    // any one uid received in a batch.
+    int mNumDeliveryBatches;
+    long mNumBatchedDeliveries;
+    int mMaxDeliveryBatchSize;
+    int mMaxDeliveryBatchUids;
+    int mMaxDeliveriesPerUid;
+    final SparseIntArray mTmpDeliveriesPerUid = new SparseIntArray();
+
     // Bookkeeping about the identity of the "System UI" package, determined at runtime.
 
     /**
@@ -555,6 +576,45 @@ class AlarmManagerService extends SystemService {
             return didRemove;
         }
 
+        // Moves the alarms that may not run while idle to deferred, as setImplLocked would
+        // have done had they been set after the idle until alarm.
+        boolean removeNotAllowedWhileIdle(final ArrayList<Alarm> deferred) {
+            boolean didRemove = false;
+            long newStart = 0;  // recalculate endpoints as we go
+            long newEnd = Long.MAX_VALUE;
+            int newFlags = 0;
+            for (int i = alarms.size()-1; i >= 0; i--) {
+                Alarm alarm = alarms.get(i);
+                if ((alarm.flags&(AlarmManager.FLAG_IDLE_UNTIL
+                        | AlarmManager.FLAG_ALLOW_WHILE_IDLE
+                        | AlarmManager.FLAG_ALLOW_WHILE_IDLE_UNRESTRICTED
+                        | AlarmManager.FLAG_WAKE_FROM_IDLE))
+                        == 0) {
+                    alarms.remove(i);
+                    deferred.add(alarm);
+                    didRemove = true;
+                    if (alarm.alarmClock != null) {
+                        mNextAlarmClockMayChange = true;
+                    }
+                } else {
+                    if (alarm.whenElapsed > newStart) {
+                        newStart = alarm.whenElapsed;
+                    }
+                    if (alarm.maxWhenElapsed < newEnd) {
+                        newEnd = alarm.maxWhenElapsed;
+                    }
+                    newFlags |= alarm.flags;
+                }
+            }
+            if (didRemove) {
+                // commit the new batch bounds
+                start = newStart;
+                end = newEnd;
+                flags = newFlags;
+            }
+            return didRemove;
+        }
+
         boolean remove(final int userHandle) {
             boolean didRemove = false;
             long newStart = 0;  // recalculate endpoints as we go
@@ -648,14 +708,30 @@ class AlarmManagerService extends SystemService {
                 return 1;
             }
 
-            // within each class, sort by nominal delivery time
+            // within each class, keep each uid's alarms together, so its process handles
+            // them back to back rather than being woken up again for each one.  Each uid's
+            // group goes out at the position of its earliest alarm, so groups stay in
+            // delivery time order; the uid only breaks ties between groups.
+            if (lhs.uidGroupWhenElapsed < rhs.uidGroupWhenElapsed) {
+                return -1;
+            } else if (lhs.uidGroupWhenElapsed > rhs.uidGroupWhenElapsed) {
+                return 1;
+            }
+            if (lhs.uid < rhs.uid) {
+                return -1;
+            } else if (lhs.uid > rhs.uid) {
+                return 1;
+            }
+
+            // within each uid, sort by nominal delivery time; the sort is stable, so alarms
+            // due at the same time stay in the order they were collected
             if (lhs.whenElapsed < rhs.whenElapsed) {
                 return -1;
             } else if (lhs.whenElapsed > rhs.whenElapsed) {
                 return 1;
             }
 
-            // same priority class + same target delivery time
+            // same priority class + same uid + same target delivery time
             return 0;
         }
     };
@@ -699,6 +775,25 @@ class AlarmManagerService extends SystemService {
                 }
             }
         }
+
+        // Now that the classes are settled, find where each uid's group goes within its
+        // class: at the earliest delivery time among its alarms.
+        final SparseLongArray[] groupWhen = new SparseLongArray[PRIO_NORMAL + 1];
+        for (int i = 0; i < N; i++) {
+            final Alarm a = alarms.get(i);
+            final int prio = a.priorityClass.priority;
+            if (groupWhen[prio] == null) {
+                groupWhen[prio] = new SparseLongArray();
+            }
+            final int index = groupWhen[prio].indexOfKey(a.uid);
+            if (index < 0 || a.whenElapsed < groupWhen[prio].valueAt(index)) {
+                groupWhen[prio].put(a.uid, a.whenElapsed);
+            }
+        }
+        for (int i = 0; i < N; i++) {
+            final Alarm a = alarms.get(i);
+            a.uidGroupWhenElapsed = groupWhen[a.priorityClass.priority].get(a.uid);
+        }
     }
 
     // minimum recurrence period or alarm futurity for us to be able to fuzz it
@@ -753,7 +848,9 @@ class AlarmManagerService extends SystemService {
 
     // Return the index of the matching batch, or -1 if none found.
     int attemptCoalesceLocked(long whenElapsed, long maxWhen) {
-        final int N = mAlarmBatches.size();
+        // Batches are ordered by start time, and a batch that starts after maxWhen can't
+        // hold the alarm, so only the batches before the first such one need checking.
+        final int N = countBatchesStartingByLocked(maxWhen);
         for (int i = 0; i < N; i++) {
             Batch b = mAlarmBatches.get(i);
             if ((b.flags&AlarmManager.FLAG_STANDALONE) == 0 && b.canHold(whenElapsed, maxWhen)) {
@@ -763,6 +860,21 @@ class AlarmManagerService extends SystemService {
         return -1;
     }
 
+    // Return the number of leading batches whose start is at or before the given time.
+    int countBatchesStartingByLocked(long whenElapsed) {
+        int lo = 0;
+        int hi = mAlarmBatches.size();
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (mAlarmBatches.get(mid).start <= whenElapsed) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
     // The RTC clock has moved arbitrarily, so we need to recalculate all the batching
     void rebatchAllAlarms() {
         synchronized (mLock) {
@@ -775,14 +887,9 @@ class AlarmManagerService extends SystemService {
         mAlarmBatches.clear();
         Alarm oldPendingIdleUntil = mPendingIdleUntil;
         final long nowElapsed = SystemClock.elapsedRealtime();
-        final int oldBatches = oldSet.size();
-        for (int batchNum = 0; batchNum < oldBatches; batchNum++) {
-            Batch batch = oldSet.get(batchNum);
-            final int N = batch.size();
-            for (int i = 0; i < N; i++) {
-                reAddAlarmLocked(batch.get(i), nowElapsed, doValidate);
-            }
-        }
+        final int numAlarms = reAddBatchesLocked(oldSet, nowElapsed, doValidate);
+        mNumFullRebatches++;
+        noteRebatchLocked(numAlarms, nowElapsed);
         if (oldPendingIdleUntil != null && oldPendingIdleUntil != mPendingIdleUntil) {
             Slog.wtf(TAG, "Rebatching: idle until changed from " + oldPendingIdleUntil
                     + " to " + mPendingIdleUntil);
@@ -795,6 +902,114 @@ class AlarmManagerService extends SystemService {
         updateNextAlarmClockLocked();
     }
 
+    /**
+     * Removes alarms from every batch using {@code removeFromBatch}, which returns whether it
+     * removed anything from the batch it is given. Batches that lost alarms are taken out of
+     * {@link #mAlarmBatches}, since their bounds may no longer match their position.
+     *
+     * @return the non-empty batches that lost alarms, to be passed to
+     *         {@link #rebatchAfterRemovalLocked}, or null if nothing was removed.
+     */
+    ArrayList<Batch> removeFromBatchesLocked(Predicate<Batch> removeFromBatch) {
+        ArrayList<Batch> changedBatches = null;
+        for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
+            final Batch b = mAlarmBatches.get(i);
+            if (removeFromBatch.test(b)) {
+                mAlarmBatches.remove(i);
+                if (changedBatches == null) {
+                    changedBatches = new ArrayList<>();
+                }
+                if (b.size() > 0) {
+                    changedBatches.add(b);
+                }
+            }
+        }
+        return changedBatches;
+    }
+
+    /**
+     * Puts the alarms of batches returned by {@link #removeFromBatchesLocked} back in the
+     * batch list. Unless {@code rebatchAll} is set, only those alarms are rebatched and all
+     * other batches are left as they were.
+     */
+    void rebatchAfterRemovalLocked(ArrayList<Batch> changedBatches, boolean rebatchAll) {
+        if (rebatchAll) {
+            for (int i = 0; i < changedBatches.size(); i++) {
+                addBatchLocked(mAlarmBatches, changedBatches.get(i));
+            }
+            rebatchAllAlarmsLocked(true);
+            return;
+        }
+        final long nowElapsed = SystemClock.elapsedRealtime();
+        final int numAlarms = reAddBatchesLocked(changedBatches, nowElapsed, true);
+        mNumPartialRebatches++;
+        noteRebatchLocked(numAlarms, nowElapsed);
+        rescheduleKernelAlarmsLocked();
+        updateNextAlarmClockLocked();
+    }
+
+    /**
+     * Called once {@link #mPendingIdleUntil} is set. Alarms that may not run while idle are
+     * moved to {@link #mPendingWhileIdleAlarms}, and only the batches they leave are
+     * rebatched; batches holding only while-idle alarms keep their place and bounds.
+     */
+    void deferAlarmsWhileIdleLocked() {
+        final ArrayList<Batch> changedBatches = removeFromBatchesLocked(
+                b -> b.removeNotAllowedWhileIdle(mPendingWhileIdleAlarms));
+        if (changedBatches != null) {
+            rebatchAfterRemovalLocked(changedBatches, false);
+        }
+    }
+
+    /**
+     * Called when an earlier wake from idle alarm is set while idling. Only the idle until
+     * alarm has to move, so only its batch is rebatched.
+     */
+    void rebatchIdleUntilLocked() {
+        final Alarm idleUntil = mPendingIdleUntil;
+        if (idleUntil.whenElapsed <= mNextWakeFromIdle.whenElapsed) {
+            return;
+        }
+        // Nothing is removed from the batch; it is only taken out to be re-added.
+        final ArrayList<Batch> changedBatches = removeFromBatchesLocked(
+                b -> b.alarms.contains(idleUntil));
+        if (changedBatches != null) {
+            rebatchAfterRemovalLocked(changedBatches, false);
+        }
+    }
+
+    /**
+     * Returns whether the device idle alarms, if any, match {@code predicate}. Removing one
+     * of them changes when other alarms may run, so every alarm must then be rebatched.
+     */
+    boolean idleAlarmsMatchLocked(Predicate<Alarm> predicate) {
+        return (mPendingIdleUntil != null && predicate.test(mPendingIdleUntil))
+                || (mNextWakeFromIdle != null && predicate.test(mNextWakeFromIdle));
+    }
+
+    int reAddBatchesLocked(ArrayList<Batch> batches, long nowElapsed, boolean doValidate) {
+        int numAlarms = 0;
+        final int numBatches = batches.size();
+        for (int batchNum = 0; batchNum < numBatches; batchNum++) {
+            Batch batch = batches.get(batchNum);
+            final int N = batch.size();
+            for (int i = 0; i < N; i++) {
+                reAddAlarmLocked(batch.get(i), nowElapsed, doValidate);
+            }
+            numAlarms += N;
+        }
+        return numAlarms;
+    }
+
+    void noteRebatchLocked(int numAlarms, long startElapsed) {
+        final long duration = SystemClock.elapsedRealtime() - startElapsed;
+        mNumRebatchedAlarms += numAlarms;
+        mTotalRebatchTime += duration;
+        if (duration > mMaxRebatchTime) {
+            mMaxRebatchTime = duration;
+        }
+    }
+
     void reAddAlarmLocked(Alarm a, long nowElapsed, boolean doValidate) {
         a.when = a.origWhen;
         long whenElapsed = convertToElapsed(a.when, a.type);
@@ -1198,7 +1413,8 @@ class AlarmManagerService extends SystemService {
         setImplLocked(a, false, doValidate);
     }
 
-    private void setImplLocked(Alarm a, boolean rebatching, boolean doValidate) {
+    @VisibleForTesting
+    void setImplLocked(Alarm a, boolean rebatching, boolean doValidate) {
         if ((a.flags&AlarmManager.FLAG_IDLE_UNTIL) != 0) {
             // This is a special alarm that will put the system into idle until it goes off.
             // The caller has given the time they want this to happen at, however we need
@@ -1317,7 +1533,11 @@ class AlarmManagerService extends SystemService {
             }
 
             if (needRebatch) {
-                rebatchAllAlarmsLocked(false);
+                if ((a.flags&AlarmManager.FLAG_IDLE_UNTIL) != 0) {
+                    deferAlarmsWhileIdleLocked();
+                } else {
+                    rebatchIdleUntilLocked();
+                }
             }
 
             rescheduleKernelAlarmsLocked();
@@ -1511,6 +1731,12 @@ class AlarmManagerService extends SystemService {
             pw.print(" set at "); TimeUtils.formatDuration(mLastWakeupSet, nowELAPSED, pw);
             pw.println();
             pw.print("  Num time change events: "); pw.println(mNumTimeChanged);
+            pw.print("  Rebatches: full="); pw.print(mNumFullRebatches);
+            pw.print(" partial="); pw.print(mNumPartialRebatches);
+            pw.print(" alarms="); pw.print(mNumRebatchedAlarms);
+            pw.print(" total time="); TimeUtils.formatDuration(mTotalRebatchTime, pw);
+            pw.print(" max time="); TimeUtils.formatDuration(mMaxRebatchTime, pw);
+            pw.println();
             pw.println("  mDeviceIdleUserWhitelist=" + Arrays.toString(mDeviceIdleUserWhitelist));
 
             pw.println();
@@ -1578,6 +1804,13 @@ class AlarmManagerService extends SystemService {
             pw.print(", max non-interactive time: ");
             TimeUtils.formatDuration(mNonInteractiveTime, pw);
             pw.println();
+            pw.print("  Delivery batches: "); pw.print(mNumDeliveryBatches);
+            pw.print(", alarms delivered: "); pw.print(mNumBatchedDeliveries);
+            pw.print(", max batch size: "); pw.print(mMaxDeliveryBatchSize);
+            pw.println();
+            pw.print("    Max uids in a batch: "); pw.print(mMaxDeliveryBatchUids);
+            pw.print(", max alarms for one uid in a batch: "); pw.print(mMaxDeliveriesPerUid);
+            pw.println();
 
             pw.println();
             pw.print("  Broadcast ref count: "); pw.println(mBroadcastRefCount);
@@ -1976,14 +2209,9 @@ class AlarmManagerService extends SystemService {
     }
 
     private void removeLocked(PendingIntent operation, IAlarmListener directReceiver) {
-        boolean didRemove = false;
-        for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
-            Batch b = mAlarmBatches.get(i);
-            didRemove |= b.remove(operation, directReceiver);
-            if (b.size() == 0) {
-                mAlarmBatches.remove(i);
-            }
-        }
+        final ArrayList<Batch> changedBatches = removeFromBatchesLocked(
+                b -> b.remove(operation, directReceiver));
+        final boolean didRemove = changedBatches != null;
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
             if (mPendingWhileIdleAlarms.get(i).matches(operation, directReceiver)) {
                 // Don't set didRemove, since this doesn't impact the scheduled alarms.
@@ -1995,6 +2223,8 @@ class AlarmManagerService extends SystemService {
             if (DEBUG_BATCH) {
                 Slog.v(TAG, "remove(operation) changed bounds; rebatching");
             }
+            final boolean rebatchAll = idleAlarmsMatchLocked(
+                    a -> a.matches(operation, directReceiver));
             boolean restorePending = false;
             if (mPendingIdleUntil != null && mPendingIdleUntil.matches(operation, directReceiver)) {
                 mPendingIdleUntil = null;
@@ -2003,7 +2233,7 @@ class AlarmManagerService extends SystemService {
             if (mNextWakeFromIdle != null && mNextWakeFromIdle.matches(operation, directReceiver)) {
                 mNextWakeFromIdle = null;
             }
-            rebatchAllAlarmsLocked(true);
+            rebatchAfterRemovalLocked(changedBatches, rebatchAll);
             if (restorePending) {
                 restorePendingWhileIdleAlarmsLocked();
             }
@@ -2012,14 +2242,9 @@ class AlarmManagerService extends SystemService {
     }
 
     void removeLocked(String packageName) {
-        boolean didRemove = false;
-        for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
-            Batch b = mAlarmBatches.get(i);
-            didRemove |= b.remove(packageName);
-            if (b.size() == 0) {
-                mAlarmBatches.remove(i);
-            }
-        }
+        final ArrayList<Batch> changedBatches = removeFromBatchesLocked(
+                b -> b.remove(packageName));
+        final boolean didRemove = changedBatches != null;
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
             final Alarm a = mPendingWhileIdleAlarms.get(i);
             if (a.matches(packageName)) {
@@ -2032,21 +2257,17 @@ class AlarmManagerService extends SystemService {
             if (DEBUG_BATCH) {
                 Slog.v(TAG, "remove(package) changed bounds; rebatching");
             }
-            rebatchAllAlarmsLocked(true);
+            rebatchAfterRemovalLocked(changedBatches,
+                    idleAlarmsMatchLocked(a -> a.matches(packageName)));
             rescheduleKernelAlarmsLocked();
             updateNextAlarmClockLocked();
         }
     }
 
     void removeForStoppedLocked(int uid) {
-        boolean didRemove = false;
-        for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
-            Batch b = mAlarmBatches.get(i);
-            didRemove |= b.removeForStopped(uid);
-            if (b.size() == 0) {
-                mAlarmBatches.remove(i);
-            }
-        }
+        final ArrayList<Batch> changedBatches = removeFromBatchesLocked(
+                b -> b.removeForStopped(uid));
+        final boolean didRemove = changedBatches != null;
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
             final Alarm a = mPendingWhileIdleAlarms.get(i);
             if (a.uid == uid) {
@@ -2059,21 +2280,16 @@ class AlarmManagerService extends SystemService {
             if (DEBUG_BATCH) {
                 Slog.v(TAG, "remove(package) changed bounds; rebatching");
             }
-            rebatchAllAlarmsLocked(true);
+            rebatchAfterRemovalLocked(changedBatches, idleAlarmsMatchLocked(a -> a.uid == uid));
             rescheduleKernelAlarmsLocked();
             updateNextAlarmClockLocked();
         }
     }
 
     void removeUserLocked(int userHandle) {
-        boolean didRemove = false;
-        for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
-            Batch b = mAlarmBatches.get(i);
-            didRemove |= b.remove(userHandle);
-            if (b.size() == 0) {
-                mAlarmBatches.remove(i);
-            }
-        }
+        final ArrayList<Batch> changedBatches = removeFromBatchesLocked(
+                b -> b.remove(userHandle));
+        final boolean didRemove = changedBatches != null;
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
             if (UserHandle.getUserId(mPendingWhileIdleAlarms.get(i).creatorUid)
                     == userHandle) {
@@ -2091,7 +2307,8 @@ class AlarmManagerService extends SystemService {
             if (DEBUG_BATCH) {
                 Slog.v(TAG, "remove(user) changed bounds; rebatching");
             }
-            rebatchAllAlarmsLocked(true);
+            rebatchAfterRemovalLocked(changedBatches, idleAlarmsMatchLocked(
+                    a -> UserHandle.getUserId(a.creatorUid) == userHandle));
             rescheduleKernelAlarmsLocked();
             updateNextAlarmClockLocked();
         }
@@ -2326,7 +2543,8 @@ class AlarmManagerService extends SystemService {
         }
     }
     
-    private static class Alarm {
+    @VisibleForTesting
+    static class Alarm {
         public final int type;
         public final long origWhen;
         public final boolean wakeup;
@@ -2347,6 +2565,8 @@ class AlarmManagerService extends SystemService {
         public long maxWhenElapsed; // also in the elapsed time base
         public long repeatInterval;
         public PriorityClass priorityClass;
+        public long uidGroupWhenElapsed; // earliest whenElapsed of this uid's alarms in its
+                                         // priority class, see calculateDeliveryPriorities
 
         public Alarm(int _type, long _when, long _whenElapsed, long _windowLength, long _maxWhen,
                 long _interval, PendingIntent _op, IAlarmListener _rec, String _listenerTag,
@@ -2513,6 +2733,7 @@ class AlarmManagerService extends SystemService {
 
     void deliverAlarmsLocked(ArrayList<Alarm> triggerList, long nowELAPSED) {
         mLastAlarmDeliveryTime = nowELAPSED;
+        noteDeliveryBatchLocked(triggerList);
         for (int i=0; i<triggerList.size(); i++) {
             Alarm alarm = triggerList.get(i);
             final boolean allowWhileIdle = (alarm.flags&AlarmManager.FLAG_ALLOW_WHILE_IDLE) != 0;
@@ -2538,6 +2759,31 @@ class AlarmManagerService extends SystemService {
         }
     }
 
+    void noteDeliveryBatchLocked(ArrayList<Alarm> triggerList) {
+        final int N = triggerList.size();
+        if (N == 0) {
+            return;
+        }
+        final SparseIntArray perUid = mTmpDeliveriesPerUid;
+        for (int i = 0; i < N; i++) {
+            final int uid = triggerList.get(i).uid;
+            final int count = perUid.get(uid) + 1;
+            perUid.put(uid, count);
+            if (count > mMaxDeliveriesPerUid) {
+                mMaxDeliveriesPerUid = count;
+            }
+        }
+        mNumDeliveryBatches++;
+        mNumBatchedDeliveries += N;
+        if (N > mMaxDeliveryBatchSize) {
+            mMaxDeliveryBatchSize = N;
+        }
+        if (perUid.size() > mMaxDeliveryBatchUids) {
+            mMaxDeliveryBatchUids = perUid.size();
+        }
+        perUid.clear();
+    }
+
     private class AlarmThread extends Thread
     {
         public AlarmThread()
@@ -2644,8 +2890,8 @@ class AlarmManagerService extends SystemService {
                             rescheduleKernelAlarmsLocked();
                             updateNextAlarmClockLocked();
                             if (mPendingNonWakeupAlarms.size() > 0) {
-                                calculateDeliveryPriorities(mPendingNonWakeupAlarms);
                                 triggerList.addAll(mPendingNonWakeupAlarms);
+                                calculateDeliveryPriorities(triggerList);
                                 Collections.sort(triggerList, mAlarmDispatchComparator);
                                 final long thisDelayTime = nowELAPSED - mStartCurrentDelayTime;
                                 mTotalDelayTime += thisDelayTime;
@@ -82,6 +82,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class AppOpsService extends IAppOpsService.Stub {
     static final String TAG = "AppOps";
@@ -114,6 +115,47 @@ public class AppOpsService extends IAppOpsService.Stub {
 
     private final SparseArray<UidState> mUidStates = new SparseArray<>();
 
+    /**
+     * Results of {@link #checkOperation} that can be returned without taking the service lock.
+     * Replaced with an empty cache, under the lock, whenever a mode, a user restriction or the
+     * set of known packages changes; see {@link #invalidateModeCacheLocked}.
+     */
+    private volatile ModeCache mModeCache = new ModeCache();
+
+    /** Upper bound on the number of results kept in {@link #mModeCache}. */
+    private static final int MAX_MODE_CACHE_SIZE = 4096;
+
+    private static final class ModeCacheKey {
+        final int code;
+        final int uid;
+        final String packageName;
+
+        ModeCacheKey(int code, int uid, String packageName) {
+            this.code = code;
+            this.uid = uid;
+            this.packageName = packageName;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ModeCacheKey)) {
+                return false;
+            }
+            final ModeCacheKey other = (ModeCacheKey) o;
+            return code == other.code && uid == other.uid
+                    && packageName.equals(other.packageName);
+        }
+
+        @Override
+        public int hashCode() {
+            return (code * 31 + uid) * 31 + packageName.hashCode();
+        }
+    }
+
+    private static final class ModeCache {
+        final ConcurrentHashMap<ModeCacheKey, Integer> modes = new ConcurrentHashMap<>();
+    }
+
     /*
      * These are app op restrictions imposed per user from various parties.
      */
@@ -291,6 +333,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                     mUidStates.removeAt(i);
                 }
             }
+            invalidateModeCacheLocked();
             if (changed) {
                 scheduleFastWriteLocked();
             }
@@ -365,6 +408,7 @@ public class AppOpsService extends IAppOpsService.Stub {
             }
 
             if (changed) {
+                invalidateModeCacheLocked();
                 scheduleFastWriteLocked();
             }
         }
@@ -374,6 +418,7 @@ public class AppOpsService extends IAppOpsService.Stub {
         synchronized (this) {
             if (mUidStates.indexOfKey(uid) >= 0) {
                 mUidStates.remove(uid);
+                invalidateModeCacheLocked();
                 scheduleFastWriteLocked();
             }
         }
@@ -553,6 +598,7 @@ public class AppOpsService extends IAppOpsService.Stub {
 
         synchronized (this) {
             final int defaultMode = AppOpsManager.opToDefaultMode(code);
+            invalidateModeCacheLocked();
 
             UidState uidState = getUidStateLocked(uid, false);
             if (uidState == null) {
@@ -668,6 +714,7 @@ public class AppOpsService extends IAppOpsService.Stub {
             if (op != null) {
                 if (op.mode != mode) {
                     op.mode = mode;
+                    invalidateModeCacheLocked();
                     ArraySet<Callback> cbs = mOpModeWatchers.get(code);
                     if (cbs != null) {
                         if (repCbs == null) {
@@ -844,6 +891,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 }
             }
 
+            invalidateModeCacheLocked();
             if (changed) {
                 scheduleFastWriteLocked();
             }
@@ -941,24 +989,48 @@ public class AppOpsService extends IAppOpsService.Stub {
         if (resolvedPackageName == null) {
             return AppOpsManager.MODE_IGNORED;
         }
+        final ModeCacheKey key = new ModeCacheKey(code, uid, resolvedPackageName);
+        final Integer cachedMode = mModeCache.modes.get(key);
+        if (cachedMode != null) {
+            return cachedMode;
+        }
         synchronized (this) {
-            if (isOpRestrictedLocked(uid, code, resolvedPackageName)) {
-                return AppOpsManager.MODE_IGNORED;
+            final int mode = checkOperationLocked(code, uid, resolvedPackageName);
+            // Read the cache again under the lock: it may have been replaced since the
+            // lookup above, and a result must only go into the cache it was computed for.
+            final ModeCache cache = mModeCache;
+            if (cache.modes.size() < MAX_MODE_CACHE_SIZE) {
+                cache.modes.put(key, mode);
             }
-            code = AppOpsManager.opToSwitch(code);
-            UidState uidState = getUidStateLocked(uid, false);
-            if (uidState != null && uidState.opModes != null
-                    && uidState.opModes.indexOfKey(code) >= 0) {
-                return uidState.opModes.get(code);
-            }
-            Op op = getOpLocked(code, uid, resolvedPackageName, false);
-            if (op == null) {
-                return AppOpsManager.opToDefaultMode(code);
-            }
-            return op.mode;
+            return mode;
         }
     }
 
+    private int checkOperationLocked(int code, int uid, String packageName) {
+        if (isOpRestrictedLocked(uid, code, packageName)) {
+            return AppOpsManager.MODE_IGNORED;
+        }
+        code = AppOpsManager.opToSwitch(code);
+        UidState uidState = getUidStateLocked(uid, false);
+        if (uidState != null && uidState.opModes != null
+                && uidState.opModes.indexOfKey(code) >= 0) {
+            return uidState.opModes.get(code);
+        }
+        Op op = getOpLocked(code, uid, packageName, false);
+        if (op == null) {
+            return AppOpsManager.opToDefaultMode(code);
+        }
+        return op.mode;
+    }
+
+    /**
+     * Drops all cached {@link #checkOperation} results. Must be called, with the service lock
+     * held, after any change that can affect what {@link #checkOperationLocked} returns.
+     */
+    private void invalidateModeCacheLocked() {
+        mModeCache = new ModeCache();
+    }
+
     @Override
     public int checkAudioOperation(int code, int usage, int uid, String packageName) {
         boolean suspended;
@@ -1457,6 +1529,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                     if (!success) {
                         mUidStates.clear();
                     }
+                    invalidateModeCacheLocked();
                     try {
                         stream.close();
                     } catch (IOException e) {
@@ -1598,7 +1671,31 @@ public class AppOpsService extends IAppOpsService.Stub {
 
     void writeState() {
         synchronized (mFile) {
-            List<AppOpsManager.PackageOps> allOps = getPackagesForOps(null);
+            // Take a consistent copy of everything that gets persisted in a single pass under
+            // the service lock, then serialize it without holding the lock so that callers
+            // checking and noting ops are not blocked on XML formatting and disk I/O.
+            final SparseArray<SparseIntArray> uidOpModes = new SparseArray<>();
+            final List<AppOpsManager.PackageOps> allOps;
+            final boolean[] privileged;
+            synchronized (this) {
+                final int uidStateCount = mUidStates.size();
+                for (int i = 0; i < uidStateCount; i++) {
+                    final UidState uidState = mUidStates.valueAt(i);
+                    if (uidState.opModes != null && uidState.opModes.size() > 0) {
+                        uidOpModes.put(uidState.uid, uidState.opModes.clone());
+                    }
+                }
+                allOps = getPackagesForOps(null);
+                final int pkgCount = allOps != null ? allOps.size() : 0;
+                privileged = new boolean[pkgCount];
+                for (int i = 0; i < pkgCount; i++) {
+                    final AppOpsManager.PackageOps pkg = allOps.get(i);
+                    final Ops ops = getOpsRawLocked(pkg.getUid(), pkg.getPackageName(), false);
+                    // Should always be present as the list of PackageOps is generated
+                    // from Ops.
+                    privileged[i] = ops != null && ops.isPrivileged;
+                }
+            }
 
             FileOutputStream stream;
             try {
@@ -1614,24 +1711,21 @@ public class AppOpsService extends IAppOpsService.Stub {
                 out.startDocument(null, true);
                 out.startTag(null, "app-ops");
 
-                final int uidStateCount = mUidStates.size();
-                for (int i = 0; i < uidStateCount; i++) {
-                    UidState uidState = mUidStates.valueAt(i);
-                    if (uidState.opModes != null && uidState.opModes.size() > 0) {
-                        out.startTag(null, "uid");
-                        out.attribute(null, "n", Integer.toString(uidState.uid));
-                        SparseIntArray uidOpModes = uidState.opModes;
-                        final int opCount = uidOpModes.size();
-                        for (int j = 0; j < opCount; j++) {
-                            final int op = uidOpModes.keyAt(j);
-                            final int mode = uidOpModes.valueAt(j);
-                            out.startTag(null, "op");
-                            out.attribute(null, "n", Integer.toString(op));
-                            out.attribute(null, "m", Integer.toString(mode));
-                            out.endTag(null, "op");
-                        }
-                        out.endTag(null, "uid");
+                final int uidCount = uidOpModes.size();
+                for (int i = 0; i < uidCount; i++) {
+                    out.startTag(null, "uid");
+                    out.attribute(null, "n", Integer.toString(uidOpModes.keyAt(i)));
+                    final SparseIntArray opModes = uidOpModes.valueAt(i);
+                    final int opCount = opModes.size();
+                    for (int j = 0; j < opCount; j++) {
+                        final int op = opModes.keyAt(j);
+                        final int mode = opModes.valueAt(j);
+                        out.startTag(null, "op");
+                        out.attribute(null, "n", Integer.toString(op));
+                        out.attribute(null, "m", Integer.toString(mode));
+                        out.endTag(null, "op");
                     }
+                    out.endTag(null, "uid");
                 }
 
                 if (allOps != null) {
@@ -1648,16 +1742,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                         }
                         out.startTag(null, "uid");
                         out.attribute(null, "n", Integer.toString(pkg.getUid()));
-                        synchronized (this) {
-                            Ops ops = getOpsRawLocked(pkg.getUid(), pkg.getPackageName(), false);
-                            // Should always be present as the list of PackageOps is generated
-                            // from Ops.
-                            if (ops != null) {
-                                out.attribute(null, "p", Boolean.toString(ops.isPrivileged));
-                            } else {
-                                out.attribute(null, "p", Boolean.toString(false));
-                            }
-                        }
+                        out.attribute(null, "p", Boolean.toString(privileged[i]));
                         List<AppOpsManager.OpEntry> ops = pkg.getOps();
                         for (int j=0; j<ops.size(); j++) {
                             AppOpsManager.OpEntry op = ops.get(j);
@@ -2394,6 +2479,7 @@ public class AppOpsService extends IAppOpsService.Stub {
             if (restrictionState.setRestriction(code, restricted, exceptionPackages, userHandle)) {
                 notifyChange = true;
             }
+            invalidateModeCacheLocked();
 
             if (restrictionState.isDefault()) {
                 mOpUserRestrictions.remove(token);
@@ -2445,6 +2531,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 opRestrictions.removeUser(userHandle);
             }
             removeUidsForUserLocked(userHandle);
+            invalidateModeCacheLocked();
         }
     }
 
@@ -2629,6 +2716,7 @@ public class AppOpsService extends IAppOpsService.Stub {
         public void binderDied() {
             synchronized (AppOpsService.this) {
                 mOpUserRestrictions.remove(token);
+                invalidateModeCacheLocked();
                 if (perUserRestrictions == null) {
                     return;
                 }
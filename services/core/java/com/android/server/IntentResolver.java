@@ -57,6 +57,7 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         }
 
         mFilters.add(f);
+        mFilterCategoryMasks.put(f, computeFilterCategoryMask(f));
         int numS = register_intent_filter(f, f.schemesIterator(),
                 mSchemeToFilter, "      Scheme: ");
         int numT = register_mime_types(f, "      Type: ");
@@ -200,6 +201,7 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             Slog.v(TAG, "    Cleaning Lookup Maps:");
         }
 
+        mFilterCategoryMasks.remove(f);
         int numS = unregister_intent_filter(f, f.schemesIterator(),
                 mSchemeToFilter, "      Scheme: ");
         int numT = unregister_mime_types(f, "      Type: ");
@@ -358,11 +360,12 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
                 ((intent.getFlags() & Intent.FLAG_DEBUG_LOG_RESOLUTION) != 0);
 
         FastImmutableArraySet<String> categories = getFastIntentCategories(intent);
+        final long categoryMask = getIntentCategoryMask(intent);
         final String scheme = intent.getScheme();
         int N = listCut.size();
         for (int i = 0; i < N; ++i) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType, scheme,
-                    listCut.get(i), resultList, userId);
+            buildResolveList(intent, categories, categoryMask, debug, defaultOnly, resolvedType,
+                    scheme, listCut.get(i), resultList, userId);
         }
         filterResults(resultList);
         sortResults(resultList);
@@ -382,6 +385,12 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             TAG, "Resolving type=" + resolvedType + " scheme=" + scheme
             + " defaultOnly=" + defaultOnly + " userId=" + userId + " of " + intent);
 
+        final long categoryMask = getIntentCategoryMask(intent);
+        if (categoryMask == CATEGORY_MASK_NO_MATCH && !debug) {
+            // The intent requires a category that no registered filter declares.
+            return finalList;
+        }
+
         F[] firstTypeCut = null;
         F[] secondTypeCut = null;
         F[] thirdTypeCut = null;
@@ -443,20 +452,20 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
 
         FastImmutableArraySet<String> categories = getFastIntentCategories(intent);
         if (firstTypeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, firstTypeCut, finalList, userId);
+            buildResolveList(intent, categories, categoryMask, debug, defaultOnly,
+                    resolvedType, scheme, firstTypeCut, finalList, userId);
         }
         if (secondTypeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, secondTypeCut, finalList, userId);
+            buildResolveList(intent, categories, categoryMask, debug, defaultOnly,
+                    resolvedType, scheme, secondTypeCut, finalList, userId);
         }
         if (thirdTypeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, thirdTypeCut, finalList, userId);
+            buildResolveList(intent, categories, categoryMask, debug, defaultOnly,
+                    resolvedType, scheme, thirdTypeCut, finalList, userId);
         }
         if (schemeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, schemeCut, finalList, userId);
+            buildResolveList(intent, categories, categoryMask, debug, defaultOnly,
+                    resolvedType, scheme, schemeCut, finalList, userId);
         }
         filterResults(finalList);
         sortResults(finalList);
@@ -685,6 +694,78 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         }
     }
 
+    /**
+     * Returns the bit assigned to {@code category}, assigning a new one if there is still room,
+     * or -1 if all bits are taken.
+     */
+    private int getOrAssignCategoryBit(String category) {
+        final Integer bit = mCategoryBits.get(category);
+        if (bit != null) {
+            return bit;
+        }
+        if (mCategoryBits.size() >= MAX_CATEGORY_BITS) {
+            mCategoryBitsExhausted = true;
+            return -1;
+        }
+        final int newBit = mCategoryBits.size();
+        mCategoryBits.put(category, newBit);
+        return newBit;
+    }
+
+    private long computeFilterCategoryMask(F filter) {
+        long mask = 0;
+        final int N = filter.countCategories();
+        for (int i = 0; i < N; i++) {
+            final int bit = getOrAssignCategoryBit(filter.getCategory(i));
+            if (bit >= 0) {
+                mask |= 1L << bit;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Returns the mask of category bits a filter must have to match {@code intent}, or
+     * {@link #CATEGORY_MASK_NO_MATCH} if the intent names a category that no registered filter
+     * declares. Categories that did not get a bit are left to {@link IntentFilter#match}.
+     */
+    private long getIntentCategoryMask(Intent intent) {
+        final Set<String> categories = intent.getCategories();
+        if (categories == null) {
+            return 0;
+        }
+        long mask = 0;
+        for (String category : categories) {
+            final Integer bit = mCategoryBits.get(category);
+            if (bit != null) {
+                mask |= 1L << bit;
+            } else if (!mCategoryBitsExhausted) {
+                return CATEGORY_MASK_NO_MATCH;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Cheap rejection of filters that are missing one of the categories in
+     * {@code requiredMask}; filters that pass still go through {@link IntentFilter#match}.
+     * Filters that were never registered, such as those passed to
+     * {@link #queryIntentFromList}, have no mask and are always left to the full match.
+     */
+    private boolean mayMatchCategories(F filter, long requiredMask) {
+        if (requiredMask == 0) {
+            return true;
+        }
+        final Long filterMask = mFilterCategoryMasks.get(filter);
+        if (filterMask == null) {
+            return true;
+        }
+        if (requiredMask == CATEGORY_MASK_NO_MATCH) {
+            return false;
+        }
+        return (filterMask & requiredMask) == requiredMask;
+    }
+
     private static FastImmutableArraySet<String> getFastIntentCategories(Intent intent) {
         final Set<String> categories = intent.getCategories();
         if (categories == null) {
@@ -694,8 +775,8 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
     }
 
     private void buildResolveList(Intent intent, FastImmutableArraySet<String> categories,
-            boolean debug, boolean defaultOnly, String resolvedType, String scheme,
-            F[] src, List<R> dest, int userId) {
+            long categoryMask, boolean debug, boolean defaultOnly, String resolvedType,
+            String scheme, F[] src, List<R> dest, int userId) {
         final String action = intent.getAction();
         final Uri data = intent.getData();
         final String packageName = intent.getPackage();
@@ -746,6 +827,17 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
                 }
             }
 
+            // Skip filters that cannot match before doing any of the more expensive work
+            // below. When debugging, fall through so the reason for the mismatch is logged.
+            if (!debug) {
+                if (!mayMatchCategories(filter, categoryMask)) {
+                    continue;
+                }
+                if (defaultOnly && !filter.hasCategory(Intent.CATEGORY_DEFAULT)) {
+                    continue;
+                }
+            }
+
             // Do we already have this one?
             if (!allowFilterResult(filter, dest)) {
                 if (debug) {
@@ -811,6 +903,27 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
      */
     private final ArraySet<F> mFilters = new ArraySet<F>();
 
+    /** Largest number of distinct categories that are given a bit in the category masks. */
+    private static final int MAX_CATEGORY_BITS = 63;
+
+    /** Category mask of an intent that cannot match any registered filter. */
+    private static final long CATEGORY_MASK_NO_MATCH = Long.MIN_VALUE;
+
+    /**
+     * Bit assigned to each category declared by a registered filter. Bits are never
+     * reclaimed, so an unknown category means no filter ever declared it, unless
+     * {@link #mCategoryBitsExhausted} is set.
+     */
+    private final ArrayMap<String, Integer> mCategoryBits = new ArrayMap<>();
+
+    /** Whether a category was declared after all bits had been assigned. */
+    private boolean mCategoryBitsExhausted;
+
+    /**
+     * Mask of the category bits declared by each registered filter.
+     */
+    private final ArrayMap<F, Long> mFilterCategoryMasks = new ArrayMap<>();
+
     /**
      * All of the MIME types that have been registered, such as "image/jpeg",
      * "image/*", or "{@literal *}/*".
@@ -1499,6 +1499,10 @@ public final class ActiveServices {
                         = new Intent.FilterComparison(intent);
                 IntentBindRecord b = r.bindings.get(filter);
                 if (b != null && !b.received) {
+                    if (b.requestTime != 0) {
+                        r.bindLatency.add(SystemClock.uptimeMillis() - b.requestTime);
+                        b.requestTime = 0;
+                    }
                     b.binder = service;
                     b.requested = true;
                     b.received = true;
@@ -1546,6 +1550,7 @@ public final class ActiveServices {
 
         final long origId = Binder.clearCallingIdentity();
         try {
+            ArrayList<ProcessRecord> changedApps = null;
             while (clist.size() > 0) {
                 ConnectionRecord r = clist.get(0);
                 removeConnectionLocked(r, null, null);
@@ -1566,11 +1571,24 @@ public final class ActiveServices {
                                 r.binding.service.app.hasClientActivities
                                 || r.binding.service.app.treatLikeActivity, null);
                     }
-                    mAm.updateOomAdjLocked(r.binding.service.app, false);
+                    if (changedApps == null) {
+                        changedApps = new ArrayList<>();
+                    }
+                    if (!changedApps.contains(r.binding.service.app)) {
+                        changedApps.add(r.binding.service.app);
+                    }
                 }
             }
 
-            mAm.updateOomAdjLocked();
+            // Only the service processes and what they depend on can have lost importance.
+            // If one of them falls back to a full update, that covers the rest too.
+            if (changedApps != null) {
+                for (int i = 0; i < changedApps.size(); i++) {
+                    if (mAm.updateOomAdjForDependentsLocked(changedApps.get(i))) {
+                        break;
+                    }
+                }
+            }
 
         } finally {
             Binder.restoreCallingIdentity(origId);
@@ -1853,6 +1871,7 @@ public final class ActiveServices {
                         r.app.repProcState);
                 if (!rebind) {
                     i.requested = true;
+                    i.requestTime = SystemClock.uptimeMillis();
                 }
                 i.hasBound = true;
                 i.doRebind = false;
@@ -2200,6 +2219,15 @@ public final class ActiveServices {
 
     private final void realStartServiceLocked(ServiceRecord r,
             ProcessRecord app, boolean execInFg) throws RemoteException {
+        realStartServiceLocked(r, app, execInFg, false /* deferOomAdj */);
+    }
+
+    /**
+     * @param deferOomAdj if set the caller is starting several services in the same process
+     *        and will update oom adj itself once it has started all of them.
+     */
+    private final void realStartServiceLocked(ServiceRecord r,
+            ProcessRecord app, boolean execInFg, boolean deferOomAdj) throws RemoteException {
         if (app.thread == null) {
             throw new RemoteException();
         }
@@ -2213,7 +2241,9 @@ public final class ActiveServices {
         bumpServiceExecutingLocked(r, execInFg, "create");
         mAm.updateLruProcessLocked(app, false, null);
         updateServiceForegroundLocked(r.app, /* oomAdj= */ false);
-        mAm.updateOomAdjLocked();
+        if (!deferOomAdj) {
+            mAm.updateOomAdjLocked();
+        }
 
         boolean created = false;
         try {
@@ -2230,6 +2260,7 @@ public final class ActiveServices {
             mAm.notifyPackageUse(r.serviceInfo.packageName,
                                  PackageManager.NOTIFY_PACKAGE_USE_SERVICE);
             app.forceProcessStateUpTo(ActivityManager.PROCESS_STATE_SERVICE);
+            r.createRequestTime = SystemClock.uptimeMillis();
             app.thread.scheduleCreateService(r, r.serviceInfo,
                     mAm.compatibilityInfoForPackageLocked(r.serviceInfo.applicationInfo),
                     app.repProcState);
@@ -2675,10 +2706,21 @@ public final class ActiveServices {
     void serviceDoneExecutingLocked(ServiceRecord r, int type, int startId, int res) {
         boolean inDestroying = mDestroyingServices.contains(r);
         if (r != null) {
+            final long now = SystemClock.uptimeMillis();
+            if (r.createRequestTime != 0) {
+                // The app handles requests for a service in order, so the first one it reports
+                // done after a create is the create itself.
+                r.createLatency.add(now - r.createRequestTime);
+                r.createRequestTime = 0;
+            }
             if (type == ActivityThread.SERVICE_DONE_EXECUTING_START) {
                 // This is a call from a service start...  take care of
                 // book-keeping.
                 r.callStart = true;
+                final ServiceRecord.StartItem delivered = r.findDeliveredStart(startId, false);
+                if (delivered != null && delivered.deliveredTime != 0) {
+                    r.startLatency.add(now - delivered.deliveredTime);
+                }
                 switch (res) {
                     case Service.START_STICKY_COMPATIBILITY:
                     case Service.START_STICKY: {
@@ -2838,7 +2880,9 @@ public final class ActiveServices {
                     i--;
                     proc.addPackage(sr.appInfo.packageName, sr.appInfo.versionCode,
                             mAm.mProcessStats);
-                    realStartServiceLocked(sr, proc, sr.createdFromFg);
+                    // All of these are started within this one call, so a single oom adj
+                    // update once they are in place covers them.
+                    realStartServiceLocked(sr, proc, sr.createdFromFg, true /* deferOomAdj */);
                     didSomething = true;
                     if (!isServiceNeededLocked(sr, false, false)) {
                         // We were waiting for this service to start, but it is actually no
@@ -2848,6 +2892,9 @@ public final class ActiveServices {
                         bringDownServiceLocked(sr);
                     }
                 }
+                if (didSomething) {
+                    mAm.updateOomAdjLocked();
+                }
             } catch (RemoteException e) {
                 Slog.w(TAG, "Exception in new application when starting service "
                         + sr.shortName, e);
@@ -2906,7 +2953,7 @@ public final class ActiveServices {
                 didSomething = true;
                 Slog.i(TAG, "  Force stopping service " + service);
                 if (service.app != null) {
-                    service.app.removed = killProcess;
+                    mAm.setProcessRemovedLocked(service.app, killProcess);
                     if (!service.app.persistent) {
                         service.app.services.remove(service);
                         if (service.whitelistManager) {
@@ -781,6 +781,19 @@ public class ActivityManagerService extends IActivityManager.Stub
      */
     final ProcessMap<ProcessRecord> mProcessNames = new ProcessMap<ProcessRecord>();
 
+    /**
+     * Secondary indexes over {@link #mProcessNames}, maintained by addProcessNameLocked and
+     * removeProcessNameLocked, so that killPackageProcessesLocked only needs to look at the
+     * processes that can match instead of every running process.
+     */
+    final SparseArray<ArraySet<ProcessRecord>> mProcessNamesByAppId = new SparseArray<>();
+
+    /** Processes in {@link #mProcessNames} that have called addPackageDependency. */
+    final ArraySet<ProcessRecord> mProcessNamesWithPkgDeps = new ArraySet<>();
+
+    /** Processes in {@link #mProcessNames} that have {@link ProcessRecord#removed} set. */
+    final ArraySet<ProcessRecord> mRemovedProcessNames = new ArraySet<>();
+
     /**
      * Tracking long-term execution of processes to look for abuse and other
      * bad app behavior.
@@ -1101,6 +1114,22 @@ public class ActivityManagerService extends IActivityManager.Stub
     private final SparseArray<ArrayMap<GrantUri, UriPermission>>
             mGrantedUriPermissions = new SparseArray<ArrayMap<GrantUri, UriPermission>>();
 
+    /**
+     * Secondary indexes over {@link #mGrantedUriPermissions}, kept in sync by
+     * indexUriPermissionLocked and unindexUriPermissionLocked.  Grants are indexed by
+     * {@link UriPermission#sourcePkg} and {@link UriPermission#targetPkg} so package
+     * lookups do not need to visit every grant, and the number of prefix grants held by each
+     * target uid is counted so checkUriPermissionLocked can skip its prefix scan.
+     */
+    @GuardedBy("this")
+    private final ArrayMap<String, ArraySet<UriPermission>> mUriPermissionsBySourcePkg =
+            new ArrayMap<>();
+    @GuardedBy("this")
+    private final ArrayMap<String, ArraySet<UriPermission>> mUriPermissionsByTargetPkg =
+            new ArrayMap<>();
+    @GuardedBy("this")
+    private final SparseIntArray mPrefixUriPermissionCounts = new SparseIntArray();
+
     public static class GrantUri {
         public final int sourceUserId;
         public final Uri uri;
@@ -1374,6 +1403,38 @@ public class ActivityManagerService extends IActivityManager.Stub
      */
     int mAdjSeq = 0;
 
+    /**
+     * Number of full oom_adj passes over the LRU list, of partial passes limited to the
+     * processes reachable from a changed binding, and of partial passes that had to fall
+     * back to a full one.
+     */
+    long mOomAdjFullCount;
+    long mOomAdjPartialCount;
+    long mOomAdjPartialFallbackCount;
+
+    /**
+     * Number of processes started through the zygote, and the total and longest time spent
+     * waiting for it to fork and specialize them.
+     */
+    long mProcStartCount;
+    long mProcStartTotalTime;
+    long mProcStartMaxTime;
+
+    /**
+     * Total time of process starts spent in each stage of the zygote request: waiting for
+     * the zygote connection, writing the request, and waiting for the new pid.
+     */
+    long mProcStartLockWaitTime;
+    long mProcStartWriteTime;
+    long mProcStartResponseTime;
+
+    /**
+     * Scratch state for {@link #updateOomAdjForDependentsLocked}.
+     */
+    final ArrayList<ProcessRecord> mTmpOomAdjDependents = new ArrayList<>();
+    final ArraySet<ProcessRecord> mTmpOomAdjVisited = new ArraySet<>();
+    final ArraySet<UidRecord> mTmpOomAdjUids = new ArraySet<>();
+
     /**
      * Current sequence id for process LRU updating.
      */
@@ -3928,6 +3989,7 @@ public class ActivityManagerService extends IActivityManager.Stub
             Trace.traceBegin(Trace.TRACE_TAG_ACTIVITY_MANAGER, "Start proc: " +
                     app.processName);
             checkTime(startTime, "startProcess: asking zygote to start proc");
+            final long zygoteStartTime = SystemClock.elapsedRealtime();
             ProcessStartResult startResult;
             if (hostingType.equals("webview_service")) {
                 startResult = startWebView(entryPoint,
@@ -3942,6 +4004,15 @@ public class ActivityManagerService extends IActivityManager.Stub
             }
             checkTime(startTime, "startProcess: returned from zygote!");
             Trace.traceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER);
+            final long zygoteTime = SystemClock.elapsedRealtime() - zygoteStartTime;
+            mProcStartCount++;
+            mProcStartTotalTime += zygoteTime;
+            if (zygoteTime > mProcStartMaxTime) {
+                mProcStartMaxTime = zygoteTime;
+            }
+            mProcStartLockWaitTime += startResult.lockWaitTime;
+            mProcStartWriteTime += startResult.writeTime;
+            mProcStartResponseTime += startResult.responseTime;
 
             mBatteryStatsService.noteProcessStart(app.processName, app.info.uid);
             checkTime(startTime, "startProcess: done updating battery stats");
@@ -3985,7 +4056,7 @@ public class ActivityManagerService extends IActivityManager.Stub
             Slog.i(TAG, buf.toString());
             app.setPid(startResult.pid);
             app.usingWrapper = startResult.usingWrapper;
-            app.removed = false;
+            setProcessRemovedLocked(app, false);
             app.killed = false;
             app.killedByAm = false;
             checkTime(startTime, "startProcess: starting to update pids map");
@@ -6098,7 +6169,7 @@ public class ActivityManagerService extends IActivityManager.Stub
                         if (app.removed) {
                             procs.add(app);
                         } else if (app.setAdj >= ProcessList.CACHED_APP_MIN_ADJ) {
-                            app.removed = true;
+                            setProcessRemovedLocked(app, true);
                             procs.add(app);
                         }
                     }
@@ -6152,7 +6223,7 @@ public class ActivityManagerService extends IActivityManager.Stub
                             procs.add(app);
                         } else if ((minTargetSdk < 0 || app.info.targetSdkVersion < minTargetSdk)
                                 && (maxProcState < 0 || app.setProcState > maxProcState)) {
-                            app.removed = true;
+                            setProcessRemovedLocked(app, true);
                             procs.add(app);
                         }
                     }
@@ -6234,6 +6305,9 @@ public class ActivityManagerService extends IActivityManager.Stub
                     proc.pkgDeps = new ArraySet<String>(1);
                 }
                 proc.pkgDeps.add(packageName);
+                if (mProcessNames.get(proc.processName, proc.uid) == proc) {
+                    mProcessNamesWithPkgDeps.add(proc);
+                }
             }
         }
     }
@@ -6425,60 +6499,71 @@ public class ActivityManagerService extends IActivityManager.Stub
         // Remove all processes this package may have touched: all with the
         // same UID (except for the system or root user), and all whose name
         // matches the package name.
-        final int NP = mProcessNames.getMap().size();
-        for (int ip=0; ip<NP; ip++) {
-            SparseArray<ProcessRecord> apps = mProcessNames.getMap().valueAt(ip);
-            final int NA = apps.size();
-            for (int ia=0; ia<NA; ia++) {
-                ProcessRecord app = apps.valueAt(ia);
-                if (app.persistent && !evenPersistent) {
-                    // we don't kill persistent processes
-                    continue;
-                }
-                if (app.removed) {
-                    if (doit) {
+        if (appId >= 0) {
+            // Only processes already marked as removed, processes running under
+            // the app id and processes depending on the package can match, so
+            // look at those through the indexes instead of walking every process.
+            if (doit) {
+                for (int i = mRemovedProcessNames.size() - 1; i >= 0; i--) {
+                    final ProcessRecord app = mRemovedProcessNames.valueAt(i);
+                    if (!app.persistent || evenPersistent) {
                         procs.add(app);
                     }
-                    continue;
-                }
-
-                // Skip process if it doesn't meet our oom adj requirement.
-                if (app.setAdj < minOomAdj) {
-                    continue;
                 }
-
-                // If no package is specified, we call all processes under the
-                // give user id.
-                if (packageName == null) {
-                    if (userId != UserHandle.USER_ALL && app.userId != userId) {
-                        continue;
-                    }
-                    if (appId >= 0 && UserHandle.getAppId(app.uid) != appId) {
-                        continue;
+            }
+            final ArraySet<ProcessRecord> appProcs = mProcessNamesByAppId.get(appId);
+            if (appProcs != null) {
+                for (int i = appProcs.size() - 1; i >= 0; i--) {
+                    final ProcessRecord app = appProcs.valueAt(i);
+                    if (!app.removed && isPackageProcessToKillLocked(app, packageName, appId,
+                            userId, minOomAdj, evenPersistent)) {
+                        if (!doit) {
+                            return true;
+                        }
+                        setProcessRemovedLocked(app, true);
+                        procs.add(app);
                     }
-                // Package has been specified, we want to hit all processes
-                // that match it.  We need to qualify this by the processes
-                // that are running under the specified app and user ID.
-                } else {
-                    final boolean isDep = app.pkgDeps != null
-                            && app.pkgDeps.contains(packageName);
-                    if (!isDep && UserHandle.getAppId(app.uid) != appId) {
-                        continue;
+                }
+            }
+            if (packageName != null) {
+                for (int i = mProcessNamesWithPkgDeps.size() - 1; i >= 0; i--) {
+                    final ProcessRecord app = mProcessNamesWithPkgDeps.valueAt(i);
+                    if (!app.removed && UserHandle.getAppId(app.uid) != appId
+                            && isPackageProcessToKillLocked(app, packageName, appId, userId,
+                                    minOomAdj, evenPersistent)) {
+                        if (!doit) {
+                            return true;
+                        }
+                        setProcessRemovedLocked(app, true);
+                        procs.add(app);
                     }
-                    if (userId != UserHandle.USER_ALL && app.userId != userId) {
+                }
+            }
+        } else {
+            final int NP = mProcessNames.getMap().size();
+            for (int ip=0; ip<NP; ip++) {
+                SparseArray<ProcessRecord> apps = mProcessNames.getMap().valueAt(ip);
+                final int NA = apps.size();
+                for (int ia=0; ia<NA; ia++) {
+                    ProcessRecord app = apps.valueAt(ia);
+                    if (app.removed) {
+                        if (doit && (!app.persistent || evenPersistent)) {
+                            procs.add(app);
+                        }
                         continue;
                     }
-                    if (!app.pkgList.containsKey(packageName) && !isDep) {
+                    if (!isPackageProcessToKillLocked(app, packageName, appId, userId,
+                            minOomAdj, evenPersistent)) {
                         continue;
                     }
-                }
 
-                // Process has passed all conditions, kill it!
-                if (!doit) {
-                    return true;
+                    // Process has passed all conditions, kill it!
+                    if (!doit) {
+                        return true;
+                    }
+                    setProcessRemovedLocked(app, true);
+                    procs.add(app);
                 }
-                app.removed = true;
-                procs.add(app);
             }
         }
 
@@ -6490,6 +6575,50 @@ public class ActivityManagerService extends IActivityManager.Stub
         return N > 0;
     }
 
+    /**
+     * Returns whether a process that is not already removed should be killed by
+     * killPackageProcessesLocked with the given arguments.
+     */
+    private boolean isPackageProcessToKillLocked(ProcessRecord app, String packageName,
+            int appId, int userId, int minOomAdj, boolean evenPersistent) {
+        if (app.persistent && !evenPersistent) {
+            // we don't kill persistent processes
+            return false;
+        }
+
+        // Skip process if it doesn't meet our oom adj requirement.
+        if (app.setAdj < minOomAdj) {
+            return false;
+        }
+
+        // If no package is specified, we call all processes under the
+        // give user id.
+        if (packageName == null) {
+            if (userId != UserHandle.USER_ALL && app.userId != userId) {
+                return false;
+            }
+            if (appId >= 0 && UserHandle.getAppId(app.uid) != appId) {
+                return false;
+            }
+        // Package has been specified, we want to hit all processes
+        // that match it.  We need to qualify this by the processes
+        // that are running under the specified app and user ID.
+        } else {
+            final boolean isDep = app.pkgDeps != null
+                    && app.pkgDeps.contains(packageName);
+            if (!isDep && UserHandle.getAppId(app.uid) != appId) {
+                return false;
+            }
+            if (userId != UserHandle.USER_ALL && app.userId != userId) {
+                return false;
+            }
+            if (!app.pkgList.containsKey(packageName) && !isDep) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private void cleanupDisabledPackageComponentsLocked(
             String packageName, int userId, boolean killProcess, String[] changedClasses) {
 
@@ -6745,6 +6874,9 @@ public class ActivityManagerService extends IActivityManager.Stub
         // newly created process and we don't want to destroy the new one.
         if ((expecting == null) || (old == expecting)) {
             mProcessNames.remove(name, uid);
+            if (old != null) {
+                unindexProcessNameLocked(old);
+            }
         }
         if (old != null && old.uidRecord != null) {
             old.uidRecord.numProcs--;
@@ -6794,11 +6926,52 @@ public class ActivityManagerService extends IActivityManager.Stub
         proc.renderThreadTid = 0;
         uidRec.numProcs++;
         mProcessNames.put(proc.processName, proc.uid, proc);
+        indexProcessNameLocked(proc);
         if (proc.isolated) {
             mIsolatedProcesses.put(proc.uid, proc);
         }
     }
 
+    private void indexProcessNameLocked(ProcessRecord proc) {
+        final int appId = UserHandle.getAppId(proc.uid);
+        ArraySet<ProcessRecord> procs = mProcessNamesByAppId.get(appId);
+        if (procs == null) {
+            procs = new ArraySet<>();
+            mProcessNamesByAppId.put(appId, procs);
+        }
+        procs.add(proc);
+        if (proc.pkgDeps != null) {
+            mProcessNamesWithPkgDeps.add(proc);
+        }
+        if (proc.removed) {
+            mRemovedProcessNames.add(proc);
+        }
+    }
+
+    private void unindexProcessNameLocked(ProcessRecord proc) {
+        final int appId = UserHandle.getAppId(proc.uid);
+        final ArraySet<ProcessRecord> procs = mProcessNamesByAppId.get(appId);
+        if (procs != null && procs.remove(proc) && procs.isEmpty()) {
+            mProcessNamesByAppId.remove(appId);
+        }
+        mProcessNamesWithPkgDeps.remove(proc);
+        mRemovedProcessNames.remove(proc);
+    }
+
+    /**
+     * Sets {@link ProcessRecord#removed}, keeping {@link #mRemovedProcessNames} in sync.
+     * All writes to that field for a process that may be in {@link #mProcessNames} need to
+     * go through here.
+     */
+    final void setProcessRemovedLocked(ProcessRecord app, boolean removed) {
+        app.removed = removed;
+        if (!removed) {
+            mRemovedProcessNames.remove(app);
+        } else if (mProcessNames.get(app.processName, app.uid) == app) {
+            mRemovedProcessNames.add(app);
+        }
+    }
+
     boolean removeProcessLocked(ProcessRecord app,
             boolean callerWillRestart, boolean allowRestart, String reason) {
         final String name = app.processName;
@@ -8712,11 +8885,56 @@ public class ActivityManagerService extends IActivityManager.Stub
         if (perm == null) {
             perm = new UriPermission(sourcePkg, targetPkg, targetUid, grantUri);
             targetUris.put(grantUri, perm);
+            indexUriPermissionLocked(perm);
         }
 
         return perm;
     }
 
+    private void indexUriPermissionLocked(UriPermission perm) {
+        addUriPermissionToPkgIndex(mUriPermissionsBySourcePkg, perm.sourcePkg, perm);
+        addUriPermissionToPkgIndex(mUriPermissionsByTargetPkg, perm.targetPkg, perm);
+        if (perm.uri.prefix) {
+            mPrefixUriPermissionCounts.put(perm.targetUid,
+                    mPrefixUriPermissionCounts.get(perm.targetUid) + 1);
+        }
+    }
+
+    /**
+     * Must be called whenever a {@link UriPermission} is removed from
+     * {@link #mGrantedUriPermissions}.
+     */
+    private void unindexUriPermissionLocked(UriPermission perm) {
+        removeUriPermissionFromPkgIndex(mUriPermissionsBySourcePkg, perm.sourcePkg, perm);
+        removeUriPermissionFromPkgIndex(mUriPermissionsByTargetPkg, perm.targetPkg, perm);
+        if (perm.uri.prefix) {
+            final int count = mPrefixUriPermissionCounts.get(perm.targetUid) - 1;
+            if (count > 0) {
+                mPrefixUriPermissionCounts.put(perm.targetUid, count);
+            } else {
+                mPrefixUriPermissionCounts.delete(perm.targetUid);
+            }
+        }
+    }
+
+    private static void addUriPermissionToPkgIndex(
+            ArrayMap<String, ArraySet<UriPermission>> index, String pkg, UriPermission perm) {
+        ArraySet<UriPermission> perms = index.get(pkg);
+        if (perms == null) {
+            perms = new ArraySet<>();
+            index.put(pkg, perms);
+        }
+        perms.add(perm);
+    }
+
+    private static void removeUriPermissionFromPkgIndex(
+            ArrayMap<String, ArraySet<UriPermission>> index, String pkg, UriPermission perm) {
+        final ArraySet<UriPermission> perms = index.get(pkg);
+        if (perms != null && perms.remove(perm) && perms.isEmpty()) {
+            index.remove(pkg);
+        }
+    }
+
     private final boolean checkUriPermissionLocked(GrantUri grantUri, int uid,
             final int modeFlags) {
         final boolean persistable = (modeFlags & Intent.FLAG_GRANT_PERSISTABLE_URI_PERMISSION) != 0;
@@ -8738,6 +8956,9 @@ public class ActivityManagerService extends IActivityManager.Stub
         }
 
         // No exact match, look for prefixes
+        if (mPrefixUriPermissionCounts.get(uid) == 0) {
+            return false;
+        }
         final int N = perms.size();
         for (int i = 0; i < N; i++) {
             final UriPermission perm = perms.valueAt(i);
@@ -9162,7 +9383,9 @@ public class ActivityManagerService extends IActivityManager.Stub
                 if (DEBUG_URI_PERMISSION) Slog.v(TAG_URI_PERMISSION,
                         "Removing " + perm.targetUid + " permission to " + perm.uri);
 
-                perms.remove(perm.uri);
+                if (perms.remove(perm.uri) != null) {
+                    unindexUriPermissionLocked(perm);
+                }
                 if (perms.isEmpty()) {
                     mGrantedUriPermissions.remove(perm.targetUid);
                 }
@@ -9206,6 +9429,7 @@ public class ActivityManagerService extends IActivityManager.Stub
                                 modeFlags | Intent.FLAG_GRANT_PERSISTABLE_URI_PERMISSION, false);
                         if (perm.modeFlags == 0) {
                             perms.removeAt(i);
+                            unindexUriPermissionLocked(perm);
                         }
                     }
                 }
@@ -9240,6 +9464,7 @@ public class ActivityManagerService extends IActivityManager.Stub
                             targetPackage == null);
                     if (perm.modeFlags == 0) {
                         perms.removeAt(j);
+                        unindexUriPermissionLocked(perm);
                     }
                 }
             }
@@ -9310,20 +9535,59 @@ public class ActivityManagerService extends IActivityManager.Stub
 
         boolean persistChanged = false;
 
-        int N = mGrantedUriPermissions.size();
-        for (int i = 0; i < N; i++) {
-            final int targetUid = mGrantedUriPermissions.keyAt(i);
-            final ArrayMap<GrantUri, UriPermission> perms = mGrantedUriPermissions.valueAt(i);
+        if (packageName != null) {
+            // Only grants from or to the package can match, find them through the indexes.
+            final ArraySet<UriPermission> candidates = new ArraySet<>();
+            final ArraySet<UriPermission> fromPkg = mUriPermissionsBySourcePkg.get(packageName);
+            if (fromPkg != null) {
+                candidates.addAll(fromPkg);
+            }
+            final ArraySet<UriPermission> toPkg = mUriPermissionsByTargetPkg.get(packageName);
+            if (toPkg != null) {
+                candidates.addAll(toPkg);
+            }
+            for (int i = candidates.size() - 1; i >= 0; i--) {
+                final UriPermission perm = candidates.valueAt(i);
+
+                // Only inspect grants matching user
+                if (userHandle != UserHandle.USER_ALL
+                        && userHandle != UserHandle.getUserId(perm.targetUid)) {
+                    continue;
+                }
+                // Hacky solution as part of fixing a security bug; ignore
+                // grants associated with DownloadManager so we don't have
+                // to immediately launch it to regrant the permissions
+                if (Downloads.Impl.AUTHORITY.equals(perm.uri.uri.getAuthority())
+                        && !persistable) continue;
+
+                persistChanged |= perm.revokeModes(persistable
+                        ? ~0 : ~Intent.FLAG_GRANT_PERSISTABLE_URI_PERMISSION, true);
+
+                // Only remove when no modes remain; any persisted grants
+                // will keep this alive.
+                if (perm.modeFlags == 0) {
+                    final ArrayMap<GrantUri, UriPermission> perms =
+                            mGrantedUriPermissions.get(perm.targetUid);
+                    if (perms != null && perms.remove(perm.uri) != null) {
+                        unindexUriPermissionLocked(perm);
+                        if (perms.isEmpty()) {
+                            mGrantedUriPermissions.remove(perm.targetUid);
+                        }
+                    }
+                }
+            }
+        } else {
+            int N = mGrantedUriPermissions.size();
+            for (int i = 0; i < N; i++) {
+                final int targetUid = mGrantedUriPermissions.keyAt(i);
+                final ArrayMap<GrantUri, UriPermission> perms = mGrantedUriPermissions.valueAt(i);
 
-            // Only inspect grants matching user
-            if (userHandle == UserHandle.USER_ALL
-                    || userHandle == UserHandle.getUserId(targetUid)) {
-                for (Iterator<UriPermission> it = perms.values().iterator(); it.hasNext();) {
-                    final UriPermission perm = it.next();
+                // Only inspect grants matching user
+                if (userHandle == UserHandle.USER_ALL
+                        || userHandle == UserHandle.getUserId(targetUid)) {
+                    for (Iterator<UriPermission> it = perms.values().iterator(); it.hasNext();) {
+                        final UriPermission perm = it.next();
 
-                    // Only inspect grants matching package
-                    if (packageName == null || perm.sourcePkg.equals(packageName)
-                            || perm.targetPkg.equals(packageName)) {
                         // Hacky solution as part of fixing a security bug; ignore
                         // grants associated with DownloadManager so we don't have
                         // to immediately launch it to regrant the permissions
@@ -9337,14 +9601,15 @@ public class ActivityManagerService extends IActivityManager.Stub
                         // will keep this alive.
                         if (perm.modeFlags == 0) {
                             it.remove();
+                            unindexUriPermissionLocked(perm);
                         }
                     }
-                }
 
-                if (perms.isEmpty()) {
-                    mGrantedUriPermissions.remove(targetUid);
-                    N--;
-                    i--;
+                    if (perms.isEmpty()) {
+                        mGrantedUriPermissions.remove(targetUid);
+                        N--;
+                        i--;
+                    }
                 }
             }
         }
@@ -9713,12 +9978,11 @@ public class ActivityManagerService extends IActivityManager.Stub
                     }
                 }
             } else {
-                final int size = mGrantedUriPermissions.size();
-                for (int i = 0; i < size; i++) {
-                    final ArrayMap<GrantUri, UriPermission> perms =
-                            mGrantedUriPermissions.valueAt(i);
-                    for (UriPermission perm : perms.values()) {
-                        if (packageName.equals(perm.sourcePkg) && perm.persistedModeFlags != 0) {
+                final ArraySet<UriPermission> perms = mUriPermissionsBySourcePkg.get(packageName);
+                if (perms != null) {
+                    for (int i = 0; i < perms.size(); i++) {
+                        final UriPermission perm = perms.valueAt(i);
+                        if (perm.persistedModeFlags != 0) {
                             result.add(perm.buildPersistedPublicApiObject());
                         }
                     }
@@ -9736,12 +10000,11 @@ public class ActivityManagerService extends IActivityManager.Stub
 
         final ArrayList<android.content.UriPermission> result = Lists.newArrayList();
         synchronized (this) {
-            final int size = mGrantedUriPermissions.size();
-            for (int i = 0; i < size; i++) {
-                final ArrayMap<GrantUri, UriPermission> perms = mGrantedUriPermissions.valueAt(i);
-                for (UriPermission perm : perms.values()) {
-                    if (packageName.equals(perm.targetPkg) && perm.targetUserId == userId
-                            && perm.persistedModeFlags != 0) {
+            final ArraySet<UriPermission> perms = mUriPermissionsByTargetPkg.get(packageName);
+            if (perms != null) {
+                for (int i = 0; i < perms.size(); i++) {
+                    final UriPermission perm = perms.valueAt(i);
+                    if (perm.targetUserId == userId && perm.persistedModeFlags != 0) {
                         result.add(perm.buildPersistedPublicApiObject());
                     }
                 }
@@ -11572,6 +11835,16 @@ public class ActivityManagerService extends IActivityManager.Stub
             }
 
             if (!providerRunning) {
+                // Callers such as sync adapters keep asking for authorities that are not
+                // installed; remember those briefly instead of asking package manager each time.
+                final int callingUid = Binder.getCallingUid();
+                final boolean cacheMissing = userId == UserHandle.getUserId(callingUid);
+                final boolean userUnlocked = cacheMissing && mUserController.isUserRunningLocked(
+                        userId, ActivityManager.FLAG_AND_UNLOCKING_OR_UNLOCKED);
+                if (cacheMissing && mProviderMap.isProviderMissingLocked(name, callingUid,
+                        userUnlocked, startTime)) {
+                    return null;
+                }
                 try {
                     checkTime(startTime, "getContentProviderImpl: before resolveContentProvider");
                     cpi = AppGlobals.getPackageManager().
@@ -11581,6 +11854,10 @@ public class ActivityManagerService extends IActivityManager.Stub
                 } catch (RemoteException ex) {
                 }
                 if (cpi == null) {
+                    if (cacheMissing) {
+                        mProviderMap.noteProviderMissingLocked(name, callingUid, userUnlocked,
+                                startTime);
+                    }
                     return null;
                 }
                 // If the provider is a singleton AND
@@ -11891,7 +12168,13 @@ public class ActivityManagerService extends IActivityManager.Stub
                     throw new NullPointerException("connection is null");
                 }
                 if (decProviderCountLocked(conn, null, null, stable)) {
-                    updateOomAdjLocked();
+                    // Only the provider's process and what it depends on can have lost
+                    // importance from this.
+                    if (conn.provider.proc != null) {
+                        updateOomAdjForDependentsLocked(conn.provider.proc);
+                    } else {
+                        updateOomAdjLocked();
+                    }
                 }
             }
         } finally {
@@ -16034,6 +16317,24 @@ public class ActivityManagerService extends IActivityManager.Stub
                 pw.println("  mGoingToSleep=" + mStackSupervisor.mGoingToSleep);
                 pw.println("  mLaunchingActivity=" + mStackSupervisor.mLaunchingActivity);
                 pw.println("  mAdjSeq=" + mAdjSeq + " mLruSeq=" + mLruSeq);
+                pw.println("  mOomAdjFullCount=" + mOomAdjFullCount
+                        + " mOomAdjPartialCount=" + mOomAdjPartialCount
+                        + " mOomAdjPartialFallbackCount=" + mOomAdjPartialFallbackCount);
+                pw.print("  mProcStartCount="); pw.print(mProcStartCount);
+                if (mProcStartCount > 0) {
+                    pw.print(" avgZygoteTime=");
+                    TimeUtils.formatDuration(mProcStartTotalTime / mProcStartCount, pw);
+                    pw.print(" maxZygoteTime=");
+                    TimeUtils.formatDuration(mProcStartMaxTime, pw);
+                    pw.print(" (avg lockWait=");
+                    TimeUtils.formatDuration(mProcStartLockWaitTime / mProcStartCount, pw);
+                    pw.print(" write=");
+                    TimeUtils.formatDuration(mProcStartWriteTime / mProcStartCount, pw);
+                    pw.print(" response=");
+                    TimeUtils.formatDuration(mProcStartResponseTime / mProcStartCount, pw);
+                    pw.print(")");
+                }
+                pw.println();
                 pw.println("  mNumNonCachedProcs=" + mNumNonCachedProcs
                         + " (" + mLruProcesses.size() + " total)"
                         + " mNumCachedHiddenProcs=" + mNumCachedHiddenProcs
@@ -19260,6 +19561,7 @@ public class ActivityManagerService extends IActivityManager.Stub
                         Slog.w(TAG, msg);
                         throw new SecurityException(msg);
                     }
+                    mProviderMap.clearMissingProvidersLocked();
                     switch (action) {
                         case Intent.ACTION_UID_REMOVED:
                             final int uid = getUidFromIntent(intent);
@@ -19361,6 +19663,7 @@ public class ActivityManagerService extends IActivityManager.Stub
                     break;
                 case Intent.ACTION_PACKAGE_REPLACED:
                 {
+                    mProviderMap.clearMissingProvidersLocked();
                     final Uri data = intent.getData();
                     final String ssp;
                     if (data != null && (ssp = data.getSchemeSpecificPart()) != null) {
@@ -19382,6 +19685,7 @@ public class ActivityManagerService extends IActivityManager.Stub
                 }
                 case Intent.ACTION_PACKAGE_ADDED:
                 {
+                    mProviderMap.clearMissingProvidersLocked();
                     // Special case for adding a package: by default turn on compatibility mode.
                     Uri data = intent.getData();
                     String ssp;
@@ -22540,6 +22844,246 @@ public class ActivityManagerService extends IActivityManager.Stub
         return success;
     }
 
+    /**
+     * Update OomAdj for a process whose clients changed, along with every process whose
+     * importance may be derived from it: the hosts of services it is bound to and of
+     * providers it holds, transitively.  This is used in place of a full update when a
+     * binding or provider reference is dropped.
+     *
+     * Falls back to {@link #updateOomAdjLocked()} if any of those processes moves into or
+     * out of the cached range, since that reshuffles the cached slots of the rest of the
+     * LRU list, or if the reachable set is large enough that a full pass costs about the
+     * same.  It also falls back whenever the full pass would do more than reassign the
+     * processes' states: when one of them changes the process counts behind the cached and
+     * empty limits or the memory trim level, when one is due a UI hidden trim, or when one
+     * is an isolated process left without services, which only the full pass kills.
+     *
+     * @return whether a full update was done instead.
+     */
+    final boolean updateOomAdjForDependentsLocked(ProcessRecord app) {
+        final ArrayList<ProcessRecord> procs = mTmpOomAdjDependents;
+        final ArraySet<ProcessRecord> visited = mTmpOomAdjVisited;
+        procs.clear();
+        visited.clear();
+        procs.add(app);
+        visited.add(app);
+        final int maxProcs = Math.max(1, mLruProcesses.size() / 2);
+        boolean needFull = false;
+        for (int i = 0; i < procs.size() && !needFull; i++) {
+            final ProcessRecord proc = procs.get(i);
+            for (int j = proc.connections.size() - 1; j >= 0; j--) {
+                final ProcessRecord host = proc.connections.valueAt(j).binding.service.app;
+                if (host != null && visited.add(host)) {
+                    procs.add(host);
+                }
+            }
+            for (int j = proc.conProviders.size() - 1; j >= 0; j--) {
+                final ProcessRecord host = proc.conProviders.get(j).provider.proc;
+                if (host != null && visited.add(host)) {
+                    procs.add(host);
+                }
+            }
+            needFull = procs.size() > maxProcs;
+        }
+
+        if (!needFull) {
+            final ActivityRecord TOP_ACT = resumedAppLocked();
+            final ProcessRecord TOP_APP = TOP_ACT != null ? TOP_ACT.app : null;
+            final long now = SystemClock.uptimeMillis();
+            mAdjSeq++;
+            // computeOomAdjLocked() recomputes any client it depends on that has not been
+            // visited yet in this pass, so the order here doesn't matter for correctness.
+            for (int i = 0; i < procs.size(); i++) {
+                final ProcessRecord proc = procs.get(i);
+                if (proc.thread == null) {
+                    continue;
+                }
+                final boolean wasCached = proc.cached;
+                final int oldProcClass = getOomAdjProcClass(proc.curProcState);
+                final int cachedAdj = proc.curRawAdj >= ProcessList.CACHED_APP_MIN_ADJ
+                        ? proc.curRawAdj : ProcessList.UNKNOWN_ADJ;
+                computeOomAdjLocked(proc, cachedAdj, TOP_APP, false, now);
+                if (wasCached != proc.cached || proc.curRawAdj == ProcessList.UNKNOWN_ADJ
+                        || oldProcClass != getOomAdjProcClass(proc.curProcState)
+                        || (proc.pendingUiClean && (proc.systemNoUi || proc.curProcState
+                                >= ActivityManager.PROCESS_STATE_IMPORTANT_BACKGROUND))
+                        || (proc.isolated && proc.services.size() <= 0)) {
+                    needFull = true;
+                    break;
+                }
+            }
+            if (!needFull) {
+                final long nowElapsed = SystemClock.elapsedRealtime();
+                final int trackerMemFactor = mProcessStats.getMemFactorLocked();
+                for (int i = 0; i < procs.size(); i++) {
+                    final ProcessRecord proc = procs.get(i);
+                    if (proc.thread != null) {
+                        applyOomAdjLocked(proc, false, now, nowElapsed);
+                        if (proc.procStateChanged) {
+                            setProcessTrackerStateLocked(proc, trackerMemFactor, now);
+                            proc.procStateChanged = false;
+                        }
+                    }
+                }
+                updateUidsForProcsLocked(procs, nowElapsed);
+                mOomAdjPartialCount++;
+            }
+        }
+        procs.clear();
+        visited.clear();
+
+        if (needFull) {
+            mOomAdjPartialFallbackCount++;
+            updateOomAdjLocked();
+        }
+        return needFull;
+    }
+
+    /**
+     * Groups process states the way {@link #updateOomAdjLocked()} treats them once they are
+     * computed: as cached activities or empty processes, counted against their limits, as the
+     * heavy weight process, or by whether the process is trimmed as a background one.
+     */
+    private static int getOomAdjProcClass(int procState) {
+        switch (procState) {
+            case ActivityManager.PROCESS_STATE_CACHED_ACTIVITY:
+            case ActivityManager.PROCESS_STATE_CACHED_ACTIVITY_CLIENT:
+                return 1;
+            case ActivityManager.PROCESS_STATE_CACHED_EMPTY:
+                return 2;
+            case ActivityManager.PROCESS_STATE_HEAVY_WEIGHT:
+                return 3;
+            default:
+                return procState >= ActivityManager.PROCESS_STATE_HOME ? 4 : 0;
+        }
+    }
+
+    /**
+     * Applies the state computed for {@code uidRec} by an oom_adj update, dispatching any
+     * change since it was last applied to uid observers, battery stats and power manager.
+     * If the uid became idle it is added to {@code becameIdle}, which is created if needed.
+     *
+     * @return {@code becameIdle}.
+     */
+    private ArrayList<UidRecord> applyUidStateLocked(UidRecord uidRec, long nowElapsed,
+            ArrayList<UidRecord> becameIdle) {
+        int uidChange = UidRecord.CHANGE_PROCSTATE;
+        if (uidRec.curProcState != ActivityManager.PROCESS_STATE_NONEXISTENT
+                && (uidRec.setProcState != uidRec.curProcState
+                       || uidRec.setWhitelist != uidRec.curWhitelist)) {
+            if (DEBUG_UID_OBSERVERS) Slog.i(TAG_UID_OBSERVERS,
+                    "Changes in " + uidRec + ": proc state from " + uidRec.setProcState
+                    + " to " + uidRec.curProcState + ", whitelist from " + uidRec.setWhitelist
+                    + " to " + uidRec.curWhitelist);
+            if (ActivityManager.isProcStateBackground(uidRec.curProcState)
+                    && !uidRec.curWhitelist) {
+                // UID is now in the background (and not on the temp whitelist).  Was it
+                // previously in the foreground (or on the temp whitelist)?
+                if (!ActivityManager.isProcStateBackground(uidRec.setProcState)
+                        || uidRec.setWhitelist) {
+                    uidRec.lastBackgroundTime = nowElapsed;
+                    if (!mHandler.hasMessages(IDLE_UIDS_MSG)) {
+                        // Note: the background settle time is in elapsed realtime, while
+                        // the handler time base is uptime.  All this means is that we may
+                        // stop background uids later than we had intended, but that only
+                        // happens because the device was sleeping so we are okay anyway.
+                        mHandler.sendEmptyMessageDelayed(IDLE_UIDS_MSG,
+                                mConstants.BACKGROUND_SETTLE_TIME);
+                    }
+                }
+                if (uidRec.idle && !uidRec.setIdle) {
+                    uidChange = UidRecord.CHANGE_IDLE;
+                    if (becameIdle == null) {
+                        becameIdle = new ArrayList<>();
+                    }
+                    becameIdle.add(uidRec);
+                }
+            } else {
+                if (uidRec.idle) {
+                    uidChange = UidRecord.CHANGE_ACTIVE;
+                    EventLogTags.writeAmUidActive(uidRec.uid);
+                    uidRec.idle = false;
+                }
+                uidRec.lastBackgroundTime = 0;
+            }
+            final boolean wasCached = uidRec.setProcState
+                    > ActivityManager.PROCESS_STATE_RECEIVER;
+            final boolean isCached = uidRec.curProcState
+                    > ActivityManager.PROCESS_STATE_RECEIVER;
+            if (wasCached != isCached ||
+                    uidRec.setProcState == ActivityManager.PROCESS_STATE_NONEXISTENT) {
+                uidChange |= isCached ? UidRecord.CHANGE_CACHED : UidRecord.CHANGE_UNCACHED;
+            }
+            uidRec.setProcState = uidRec.curProcState;
+            uidRec.setWhitelist = uidRec.curWhitelist;
+            uidRec.setIdle = uidRec.idle;
+            enqueueUidChangeLocked(uidRec, -1, uidChange);
+            noteUidProcessState(uidRec.uid, uidRec.curProcState);
+            if (uidRec.foregroundServices) {
+                mServices.foregroundServiceProcStateChangedLocked(uidRec);
+            }
+        }
+        return becameIdle;
+    }
+
+    /**
+     * Recomputes the state of every uid that has a process in {@code procs}, taking all of
+     * that uid's processes into account as {@link #updateOomAdjLocked()} does, and applies
+     * the result. Used after a partial oom_adj update, which would otherwise leave those
+     * uids with the state of the last full update.
+     */
+    private void updateUidsForProcsLocked(ArrayList<ProcessRecord> procs, long nowElapsed) {
+        final ArraySet<UidRecord> uids = mTmpOomAdjUids;
+        uids.clear();
+        for (int i = procs.size() - 1; i >= 0; i--) {
+            final UidRecord uidRec = procs.get(i).uidRecord;
+            if (uidRec != null) {
+                uids.add(uidRec);
+            }
+        }
+        if (uids.isEmpty()) {
+            return;
+        }
+        for (int i = uids.size() - 1; i >= 0; i--) {
+            uids.valueAt(i).reset();
+        }
+        for (int i = mLruProcesses.size() - 1; i >= 0; i--) {
+            final ProcessRecord app = mLruProcesses.get(i);
+            final UidRecord uidRec = app.uidRecord;
+            if (uidRec == null || app.killedByAm || app.thread == null
+                    || !uids.contains(uidRec)) {
+                continue;
+            }
+            uidRec.ephemeral = app.info.isInstantApp();
+            if (uidRec.curProcState > app.curProcState) {
+                uidRec.curProcState = app.curProcState;
+            }
+            if (app.foregroundServices) {
+                uidRec.foregroundServices = true;
+            }
+        }
+
+        incrementProcStateSeqAndNotifyAppsLocked();
+
+        ArrayList<UidRecord> becameIdle = null;
+        if (mLocalPowerManager != null) {
+            mLocalPowerManager.startUidChanges();
+        }
+        for (int i = uids.size() - 1; i >= 0; i--) {
+            becameIdle = applyUidStateLocked(uids.valueAt(i), nowElapsed, becameIdle);
+        }
+        if (mLocalPowerManager != null) {
+            mLocalPowerManager.finishUidChanges();
+        }
+        uids.clear();
+
+        if (becameIdle != null) {
+            for (int i = becameIdle.size() - 1; i >= 0; i--) {
+                mServices.stopInBackgroundLocked(becameIdle.get(i).uid);
+            }
+        }
+    }
+
     final void updateOomAdjLocked() {
         final ActivityRecord TOP_ACT = resumedAppLocked();
         final ProcessRecord TOP_APP = TOP_ACT != null ? TOP_ACT.app : null;
@@ -22565,6 +23109,7 @@ public class ActivityManagerService extends IActivityManager.Stub
         mStackSupervisor.rankTaskLayersIfNeeded();
 
         mAdjSeq++;
+        mOomAdjFullCount++;
         mNewNumServiceProcs = 0;
         mNewNumAServiceProcs = 0;
 
@@ -22921,63 +23466,7 @@ public class ActivityManagerService extends IActivityManager.Stub
             mLocalPowerManager.startUidChanges();
         }
         for (int i=mActiveUids.size()-1; i>=0; i--) {
-            final UidRecord uidRec = mActiveUids.valueAt(i);
-            int uidChange = UidRecord.CHANGE_PROCSTATE;
-            if (uidRec.curProcState != ActivityManager.PROCESS_STATE_NONEXISTENT
-                    && (uidRec.setProcState != uidRec.curProcState
-                           || uidRec.setWhitelist != uidRec.curWhitelist)) {
-                if (DEBUG_UID_OBSERVERS) Slog.i(TAG_UID_OBSERVERS,
-                        "Changes in " + uidRec + ": proc state from " + uidRec.setProcState
-                        + " to " + uidRec.curProcState + ", whitelist from " + uidRec.setWhitelist
-                        + " to " + uidRec.curWhitelist);
-                if (ActivityManager.isProcStateBackground(uidRec.curProcState)
-                        && !uidRec.curWhitelist) {
-                    // UID is now in the background (and not on the temp whitelist).  Was it
-                    // previously in the foreground (or on the temp whitelist)?
-                    if (!ActivityManager.isProcStateBackground(uidRec.setProcState)
-                            || uidRec.setWhitelist) {
-                        uidRec.lastBackgroundTime = nowElapsed;
-                        if (!mHandler.hasMessages(IDLE_UIDS_MSG)) {
-                            // Note: the background settle time is in elapsed realtime, while
-                            // the handler time base is uptime.  All this means is that we may
-                            // stop background uids later than we had intended, but that only
-                            // happens because the device was sleeping so we are okay anyway.
-                            mHandler.sendEmptyMessageDelayed(IDLE_UIDS_MSG,
-                                    mConstants.BACKGROUND_SETTLE_TIME);
-                        }
-                    }
-                    if (uidRec.idle && !uidRec.setIdle) {
-                        uidChange = UidRecord.CHANGE_IDLE;
-                        if (becameIdle == null) {
-                            becameIdle = new ArrayList<>();
-                        }
-                        becameIdle.add(uidRec);
-                    }
-                } else {
-                    if (uidRec.idle) {
-                        uidChange = UidRecord.CHANGE_ACTIVE;
-                        EventLogTags.writeAmUidActive(uidRec.uid);
-                        uidRec.idle = false;
-                    }
-                    uidRec.lastBackgroundTime = 0;
-                }
-                final boolean wasCached = uidRec.setProcState
-                        > ActivityManager.PROCESS_STATE_RECEIVER;
-                final boolean isCached = uidRec.curProcState
-                        > ActivityManager.PROCESS_STATE_RECEIVER;
-                if (wasCached != isCached ||
-                        uidRec.setProcState == ActivityManager.PROCESS_STATE_NONEXISTENT) {
-                    uidChange |= isCached ? UidRecord.CHANGE_CACHED : UidRecord.CHANGE_UNCACHED;
-                }
-                uidRec.setProcState = uidRec.curProcState;
-                uidRec.setWhitelist = uidRec.curWhitelist;
-                uidRec.setIdle = uidRec.idle;
-                enqueueUidChangeLocked(uidRec, -1, uidChange);
-                noteUidProcessState(uidRec.uid, uidRec.curProcState);
-                if (uidRec.foregroundServices) {
-                    mServices.foregroundServiceProcStateChangedLocked(uidRec);
-                }
-            }
+            becameIdle = applyUidStateLocked(mActiveUids.valueAt(i), nowElapsed, becameIdle);
         }
         if (mLocalPowerManager != null) {
             mLocalPowerManager.finishUidChanges();
@@ -24005,7 +24494,7 @@ public class ActivityManagerService extends IActivityManager.Stub
                         if (app.removed) {
                             procs.add(app);
                         } else if (app.userId == userHandle && app.foregroundActivities) {
-                            app.removed = true;
+                            setProcessRemovedLocked(app, true);
                             procs.add(app);
                         }
                     }
@@ -4940,7 +4940,7 @@ class ActivityStack<T extends StackWindowController> extends ConfigurationContai
                     Slog.i(TAG, "  Force finishing activity " + r);
                     if (sameComponent) {
                         if (r.app != null) {
-                            r.app.removed = true;
+                            mService.setProcessRemovedLocked(r.app, true);
                         }
                         r.app = null;
                     }
@@ -652,7 +652,7 @@ class AppErrors {
                     mProcessCrashTimes.remove(app.info.processName, app.uid);
                 }
                 app.bad = true;
-                app.removed = true;
+                mService.setProcessRemovedLocked(app, true);
                 // Don't let services in this process be restarted and potentially
                 // annoy the user repeatedly.  Unless it is persistent, since those
                 // processes run critical code.
@@ -52,6 +52,7 @@ import com.android.internal.os.PowerProfile;
 import com.android.internal.os.RpmStats;
 import com.android.internal.util.DumpUtils;
 import com.android.server.LocalServices;
+import com.android.server.ServiceThread;
 import com.android.server.power.BatterySaverPolicy.ServiceType;
 
 import java.io.File;
@@ -67,6 +68,7 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * All information we are collecting about things that can happen that impact
@@ -85,6 +87,25 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     private final Context mContext;
     private final BatteryExternalStatsWorker mWorker;
 
+    /**
+     * High frequency note calls (wake locks, jobs, syncs, alarms and history events) are
+     * posted to {@link BatteryStatsImpl#postEvent} without taking the {@link #mStats} lock,
+     * and applied in batches on {@link #mEventHandler}. Each event captures the clock when it
+     * is posted, so the recorded times are those of the original call. BatteryStatsImpl
+     * itself applies any events still queued before it writes or dumps its state.
+     */
+    private final AtomicBoolean mEventDrainScheduled = new AtomicBoolean();
+    private final Handler mEventHandler;
+    private final Runnable mDrainEventsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mEventDrainScheduled.set(false);
+            synchronized (mStats) {
+                mStats.applyPendingEventsLocked();
+            }
+        }
+    };
+
     private native void getLowPowerStats(RpmStats rpmStats);
     private native int getPlatformLowPowerStats(ByteBuffer outBuffer);
     private native int getSubsystemLowPowerStats(ByteBuffer outBuffer);
@@ -173,6 +194,11 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         mStats.setRadioScanningTimeoutLocked(mContext.getResources().getInteger(
                 com.android.internal.R.integer.config_radioScanningTimeout) * 1000L);
         mStats.setPowerProfileLocked(new PowerProfile(context));
+
+        final ServiceThread eventThread = new ServiceThread("batterystats-events",
+                Process.THREAD_PRIORITY_BACKGROUND, false /* allowIo */);
+        eventThread.start();
+        mEventHandler = new Handler(eventThread.getLooper());
     }
 
     public void publish() {
@@ -192,6 +218,13 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         }
     }
 
+    private void enqueueEvent(Runnable event) {
+        mStats.postEvent(event);
+        if (mEventDrainScheduled.compareAndSet(false, true)) {
+            mEventHandler.post(mDrainEventsRunnable);
+        }
+    }
+
     /**
      * At the time when the constructor runs, the power manager has not yet been
      * initialized.  So we initialize the low power observer later.
@@ -382,109 +415,120 @@ public final class BatteryStatsService extends IBatteryStats.Stub
 
     public void noteEvent(int code, String name, int uid) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteEventLocked(code, name, uid);
-        }
+        final long elapsedRealtime = SystemClock.elapsedRealtime();
+        final long uptime = SystemClock.uptimeMillis();
+        enqueueEvent(() -> mStats.noteEventLocked(code, name, uid, elapsedRealtime, uptime));
     }
 
     public void noteSyncStart(String name, int uid) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteSyncStartLocked(name, uid);
-        }
+        final long elapsedRealtime = SystemClock.elapsedRealtime();
+        final long uptime = SystemClock.uptimeMillis();
+        enqueueEvent(() -> mStats.noteSyncStartLocked(name, uid, elapsedRealtime, uptime));
     }
 
     public void noteSyncFinish(String name, int uid) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteSyncFinishLocked(name, uid);
-        }
+        final long elapsedRealtime = SystemClock.elapsedRealtime();
+        final long uptime = SystemClock.uptimeMillis();
+        enqueueEvent(() -> mStats.noteSyncFinishLocked(name, uid, elapsedRealtime, uptime));
     }
 
     public void noteJobStart(String name, int uid) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteJobStartLocked(name, uid);
-        }
+        final long elapsedRealtime = SystemClock.elapsedRealtime();
+        final long uptime = SystemClock.uptimeMillis();
+        enqueueEvent(() -> mStats.noteJobStartLocked(name, uid, elapsedRealtime, uptime));
     }
 
     public void noteJobFinish(String name, int uid, int stopReason) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteJobFinishLocked(name, uid, stopReason);
-        }
+        final long elapsedRealtime = SystemClock.elapsedRealtime();
+        final long uptime = SystemClock.uptimeMillis();
+        enqueueEvent(() -> mStats.noteJobFinishLocked(name, uid, stopReason,
+                elapsedRealtime, uptime));
     }
 
     public void noteAlarmStart(String name, int uid) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteAlarmStartLocked(name, uid);
-        }
+        final long elapsedRealtime = SystemClock.elapsedRealtime();
+        final long uptime = SystemClock.uptimeMillis();
+        enqueueEvent(() -> mStats.noteAlarmStartLocked(name, uid, elapsedRealtime, uptime));
     }
 
     public void noteAlarmFinish(String name, int uid) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteAlarmFinishLocked(name, uid);
-        }
+        final long elapsedRealtime = SystemClock.elapsedRealtime();
+        final long uptime = SystemClock.uptimeMillis();
+        enqueueEvent(() -> mStats.noteAlarmFinishLocked(name, uid, elapsedRealtime, uptime));
     }
 
     public void noteStartWakelock(int uid, int pid, String name, String historyName, int type,
             boolean unimportantForLogging) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteStartWakeLocked(uid, pid, name, historyName, type, unimportantForLogging,
-                    SystemClock.elapsedRealtime(), SystemClock.uptimeMillis());
-        }
+        final long elapsedRealtime = SystemClock.elapsedRealtime();
+        final long uptime = SystemClock.uptimeMillis();
+        enqueueEvent(() -> mStats.noteStartWakeLocked(uid, pid, name, historyName, type,
+                unimportantForLogging, elapsedRealtime, uptime));
     }
 
     public void noteStopWakelock(int uid, int pid, String name, String historyName, int type) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteStopWakeLocked(uid, pid, name, historyName, type,
-                    SystemClock.elapsedRealtime(), SystemClock.uptimeMillis());
-        }
+        final long elapsedRealtime = SystemClock.elapsedRealtime();
+        final long uptime = SystemClock.uptimeMillis();
+        enqueueEvent(() -> mStats.noteStopWakeLocked(uid, pid, name, historyName, type,
+                elapsedRealtime, uptime));
     }
 
     public void noteStartWakelockFromSource(WorkSource ws, int pid, String name,
             String historyName, int type, boolean unimportantForLogging) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteStartWakeFromSourceLocked(ws, pid, name, historyName,
-                    type, unimportantForLogging);
-        }
+        final long elapsedRealtime = SystemClock.elapsedRealtime();
+        final long uptime = SystemClock.uptimeMillis();
+        // Callers inside system_server hand us their own WorkSource, which they may go on to
+        // modify after this returns.
+        final WorkSource wsCopy = new WorkSource(ws);
+        enqueueEvent(() -> mStats.noteStartWakeFromSourceLocked(wsCopy, pid, name, historyName,
+                type, unimportantForLogging, elapsedRealtime, uptime));
     }
 
     public void noteChangeWakelockFromSource(WorkSource ws, int pid, String name,
             String historyName, int type, WorkSource newWs, int newPid, String newName,
             String newHistoryName, int newType, boolean newUnimportantForLogging) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteChangeWakelockFromSourceLocked(ws, pid, name, historyName, type,
-                    newWs, newPid, newName, newHistoryName, newType, newUnimportantForLogging);
-        }
+        final long elapsedRealtime = SystemClock.elapsedRealtime();
+        final long uptime = SystemClock.uptimeMillis();
+        final WorkSource wsCopy = new WorkSource(ws);
+        final WorkSource newWsCopy = new WorkSource(newWs);
+        enqueueEvent(() -> mStats.noteChangeWakelockFromSourceLocked(wsCopy, pid, name,
+                historyName, type, newWsCopy, newPid, newName, newHistoryName, newType,
+                newUnimportantForLogging, elapsedRealtime, uptime));
     }
 
     public void noteStopWakelockFromSource(WorkSource ws, int pid, String name, String historyName,
             int type) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteStopWakeFromSourceLocked(ws, pid, name, historyName, type);
-        }
+        final long elapsedRealtime = SystemClock.elapsedRealtime();
+        final long uptime = SystemClock.uptimeMillis();
+        final WorkSource wsCopy = new WorkSource(ws);
+        enqueueEvent(() -> mStats.noteStopWakeFromSourceLocked(wsCopy, pid, name, historyName,
+                type, elapsedRealtime, uptime));
     }
 
     public void noteLongPartialWakelockStart(String name, String historyName, int uid) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteLongPartialWakelockStart(name, historyName, uid);
-        }
+        final long elapsedRealtime = SystemClock.elapsedRealtime();
+        final long uptime = SystemClock.uptimeMillis();
+        enqueueEvent(() -> mStats.noteLongPartialWakelockStart(name, historyName, uid,
+                elapsedRealtime, uptime));
     }
 
     public void noteLongPartialWakelockFinish(String name, String historyName, int uid) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteLongPartialWakelockFinish(name, historyName, uid);
-        }
+        final long elapsedRealtime = SystemClock.elapsedRealtime();
+        final long uptime = SystemClock.uptimeMillis();
+        enqueueEvent(() -> mStats.noteLongPartialWakelockFinish(name, historyName, uid,
+                elapsedRealtime, uptime));
     }
 
     public void noteStartSensor(int uid, int sensor) {
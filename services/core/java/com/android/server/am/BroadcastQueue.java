@@ -24,6 +24,7 @@ import java.io.PrintWriter;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Set;
 
 import android.app.ActivityManager;
@@ -48,6 +49,7 @@ import android.os.Process;
 import android.os.RemoteException;
 import android.os.SystemClock;
 import android.os.UserHandle;
+import android.util.ArrayMap;
 import android.util.EventLog;
 import android.util.Slog;
 import android.util.TimeUtils;
@@ -105,6 +107,60 @@ public final class BroadcastQueue {
      */
     final ArrayList<BroadcastRecord> mOrderedBroadcasts = new ArrayList<>();
 
+    /**
+     * Most recently enqueued record for each user and intent (as compared by
+     * {@link Intent#filterEquals}) in {@link #mParallelBroadcasts} and
+     * {@link #mOrderedBroadcasts}, so that {@link Intent#FLAG_RECEIVER_REPLACE_PENDING}
+     * can find the record to replace without scanning the queue.  Records in a list only
+     * ever leave from the front, so the latest one with a key is also the last to leave.
+     */
+    final HashMap<PendingKey, BroadcastRecord> mParallelPending = new HashMap<>();
+    final HashMap<PendingKey, BroadcastRecord> mOrderedPending = new HashMap<>();
+
+    /**
+     * Number of records ever removed from the front of {@link #mParallelBroadcasts} and
+     * {@link #mOrderedBroadcasts}.  A record's index in its list is its
+     * {@link BroadcastRecord#queueSeq} minus this.
+     */
+    int mParallelHeadSeq;
+    int mOrderedHeadSeq;
+
+    /**
+     * Pending broadcasts replaced by a newer one, and how many receiver deliveries were
+     * saved by doing so.
+     */
+    long mReplacedBroadcastCount;
+    long mReplacedDeliveryCount;
+
+    /**
+     * Key of {@link #mParallelPending} and {@link #mOrderedPending}.  Keys stored in the maps
+     * must wrap a copy of the intent's filter fields, not the record's own intent, whose
+     * component is rewritten while an ordered broadcast is delivered.
+     */
+    static final class PendingKey {
+        final int userId;
+        final Intent.FilterComparison filter;
+
+        PendingKey(int userId, Intent intent) {
+            this.userId = userId;
+            filter = new Intent.FilterComparison(intent);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PendingKey)) {
+                return false;
+            }
+            final PendingKey other = (PendingKey) o;
+            return userId == other.userId && filter.equals(other.filter);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * userId + filter.hashCode();
+        }
+    }
+
     /**
      * Historical data of past broadcasts, for debugging.  This is a ring buffer
      * whose last element is at mHistoryNext.
@@ -128,6 +184,40 @@ public final class BroadcastQueue {
     final long[] mSummaryHistoryDispatchTime = new  long[MAX_BROADCAST_SUMMARY_HISTORY];
     final long[] mSummaryHistoryFinishTime = new  long[MAX_BROADCAST_SUMMARY_HISTORY];
 
+    /**
+     * Maximum number of distinct keys tracked by each {@link DelayStats} map; anything
+     * beyond that is folded into a single {@link #DELAY_STATS_OTHER} entry.
+     */
+    static final int MAX_DELAY_STATS_KEYS = 64;
+    static final String DELAY_STATS_OTHER = "(other)";
+
+    /**
+     * How long broadcasts waited in this queue between being enqueued and dispatched,
+     * by intent action.
+     */
+    final ArrayMap<String, DelayStats> mDispatchDelayStats = new ArrayMap<>();
+
+    /**
+     * How long ordered delivery sat on a single receiver before it finished, by receiving
+     * process.  A process that shows up here with long times is holding up every ordered
+     * broadcast queued behind it.
+     */
+    final ArrayMap<String, DelayStats> mReceiverProcessStats = new ArrayMap<>();
+
+    static final class DelayStats {
+        int count;
+        long totalMs;
+        long maxMs;
+
+        void add(long delayMs) {
+            count++;
+            totalMs += delayMs;
+            if (delayMs > maxMs) {
+                maxMs = delayMs;
+            }
+        }
+    }
+
     /**
      * Set when we current have a BROADCAST_INTENT_MSG in flight.
      */
@@ -213,20 +303,52 @@ public final class BroadcastQueue {
     }
 
     public void enqueueParallelBroadcastLocked(BroadcastRecord r) {
+        r.queueSeq = mParallelHeadSeq + mParallelBroadcasts.size();
         mParallelBroadcasts.add(r);
+        indexPendingLocked(mParallelPending, r);
         enqueueBroadcastHelper(r);
     }
 
     public void enqueueOrderedBroadcastLocked(BroadcastRecord r) {
+        r.queueSeq = mOrderedHeadSeq + mOrderedBroadcasts.size();
         mOrderedBroadcasts.add(r);
+        indexPendingLocked(mOrderedPending, r);
         enqueueBroadcastHelper(r);
     }
 
+    private static void indexPendingLocked(HashMap<PendingKey, BroadcastRecord> pending,
+            BroadcastRecord r) {
+        r.pendingKey = new PendingKey(r.userId, r.intent.cloneFilter());
+        pending.put(r.pendingKey, r);
+    }
+
+    private static void unindexPendingLocked(HashMap<PendingKey, BroadcastRecord> pending,
+            BroadcastRecord r) {
+        if (r.pendingKey != null && pending.get(r.pendingKey) == r) {
+            pending.remove(r.pendingKey);
+        }
+        r.pendingKey = null;
+    }
+
+    private BroadcastRecord removeParallelHeadLocked() {
+        final BroadcastRecord r = mParallelBroadcasts.remove(0);
+        mParallelHeadSeq++;
+        unindexPendingLocked(mParallelPending, r);
+        return r;
+    }
+
+    private void removeOrderedHeadLocked() {
+        final BroadcastRecord r = mOrderedBroadcasts.remove(0);
+        mOrderedHeadSeq++;
+        unindexPendingLocked(mOrderedPending, r);
+    }
+
     /**
      * Don't call this method directly; call enqueueParallelBroadcastLocked or
      * enqueueOrderedBroadcastLocked.
      */
     private void enqueueBroadcastHelper(BroadcastRecord r) {
+        r.enqueueTime = SystemClock.uptimeMillis();
         r.enqueueClockTime = System.currentTimeMillis();
 
         if (Trace.isTagEnabled(Trace.TRACE_TAG_ACTIVITY_MANAGER)) {
@@ -241,7 +363,8 @@ public final class BroadcastQueue {
      * the old one.
      */
     public final BroadcastRecord replaceParallelBroadcastLocked(BroadcastRecord r) {
-        return replaceBroadcastLocked(mParallelBroadcasts, r, "PARALLEL");
+        return replaceBroadcastLocked(mParallelBroadcasts, mParallelPending, mParallelHeadSeq,
+                r, "PARALLEL");
     }
 
     /**
@@ -249,24 +372,35 @@ public final class BroadcastQueue {
      * the old one.
      */
     public final BroadcastRecord replaceOrderedBroadcastLocked(BroadcastRecord r) {
-        return replaceBroadcastLocked(mOrderedBroadcasts, r, "ORDERED");
+        return replaceBroadcastLocked(mOrderedBroadcasts, mOrderedPending, mOrderedHeadSeq,
+                r, "ORDERED");
     }
 
     private BroadcastRecord replaceBroadcastLocked(ArrayList<BroadcastRecord> queue,
-            BroadcastRecord r, String typeForLogging) {
-        final Intent intent = r.intent;
-        for (int i = queue.size() - 1; i > 0; i--) {
-            final BroadcastRecord old = queue.get(i);
-            if (old.userId == r.userId && intent.filterEquals(old.intent)) {
-                if (DEBUG_BROADCAST) {
-                    Slog.v(TAG_BROADCAST, "***** DROPPING "
-                            + typeForLogging + " [" + mQueueName + "]: " + intent);
-                }
-                queue.set(i, r);
-                return old;
-            }
+            HashMap<PendingKey, BroadcastRecord> pending, int headSeq, BroadcastRecord r,
+            String typeForLogging) {
+        // Only used for the lookup; the stored key is taken over from the replaced record.
+        final BroadcastRecord old = pending.get(new PendingKey(r.userId, r.intent));
+        if (old == null) {
+            return null;
         }
-        return null;
+        final int i = old.queueSeq - headSeq;
+        // The record at the front may already be in the middle of being delivered.
+        if (i <= 0 || i >= queue.size() || queue.get(i) != old) {
+            return null;
+        }
+        if (DEBUG_BROADCAST) {
+            Slog.v(TAG_BROADCAST, "***** DROPPING "
+                    + typeForLogging + " [" + mQueueName + "]: " + r.intent);
+        }
+        queue.set(i, r);
+        r.queueSeq = old.queueSeq;
+        r.pendingKey = old.pendingKey;
+        pending.put(r.pendingKey, r);
+        old.pendingKey = null;
+        mReplacedBroadcastCount++;
+        mReplacedDeliveryCount += old.receivers != null ? old.receivers.size() : 0;
+        return old;
     }
 
     private final void processCurBroadcastLocked(BroadcastRecord r,
@@ -409,6 +543,15 @@ public final class BroadcastQueue {
         r.state = BroadcastRecord.IDLE;
         if (state == BroadcastRecord.IDLE) {
             Slog.w(TAG, "finishReceiver [" + mQueueName + "] called but state is IDLE");
+        } else if (r.ordered && r.receiverTime > 0) {
+            String processName = null;
+            if (r.curApp != null) {
+                processName = r.curApp.processName;
+            } else if (r.curFilter != null && r.curFilter.receiverList.app != null) {
+                processName = r.curFilter.receiverList.app.processName;
+            }
+            noteDelayLocked(mReceiverProcessStats, processName,
+                    SystemClock.uptimeMillis() - r.receiverTime);
         }
         r.receiver = null;
         r.intent.setComponent(null);
@@ -834,9 +977,10 @@ public final class BroadcastQueue {
 
             // First, deliver any non-serialized broadcasts right away.
             while (mParallelBroadcasts.size() > 0) {
-                r = mParallelBroadcasts.remove(0);
+                r = removeParallelHeadLocked();
                 r.dispatchTime = SystemClock.uptimeMillis();
                 r.dispatchClockTime = System.currentTimeMillis();
+                noteDispatchedLocked(r);
 
                 if (Trace.isTagEnabled(Trace.TRACE_TAG_ACTIVITY_MANAGER)) {
                     Trace.asyncTraceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER,
@@ -981,7 +1125,7 @@ public final class BroadcastQueue {
                         mService.addBroadcastStatLocked(r.intent.getAction(), r.callerPackage,
                                 r.manifestCount, r.manifestSkipCount, r.finishTime-r.dispatchTime);
                     }
-                    mOrderedBroadcasts.remove(0);
+                    removeOrderedHeadLocked();
                     r = null;
                     looped = true;
                     continue;
@@ -997,6 +1141,7 @@ public final class BroadcastQueue {
             if (recIdx == 0) {
                 r.dispatchTime = r.receiverTime;
                 r.dispatchClockTime = System.currentTimeMillis();
+                noteDispatchedLocked(r);
                 if (Trace.isTagEnabled(Trace.TRACE_TAG_ACTIVITY_MANAGER)) {
                     Trace.asyncTraceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER,
                         createBroadcastTraceTitle(r, BroadcastRecord.DELIVERY_PENDING),
@@ -1490,6 +1635,43 @@ public final class BroadcastQueue {
         }
     }
 
+    private static void noteDelayLocked(ArrayMap<String, DelayStats> statsMap, String key,
+            long delayMs) {
+        if (key == null) {
+            key = DELAY_STATS_OTHER;
+        }
+        DelayStats stats = statsMap.get(key);
+        if (stats == null) {
+            if (statsMap.size() >= MAX_DELAY_STATS_KEYS) {
+                key = DELAY_STATS_OTHER;
+                stats = statsMap.get(key);
+            }
+            if (stats == null) {
+                stats = new DelayStats();
+                statsMap.put(key, stats);
+            }
+        }
+        stats.add(delayMs);
+    }
+
+    private void noteDispatchedLocked(BroadcastRecord r) {
+        noteDelayLocked(mDispatchDelayStats, r.intent.getAction(),
+                Math.max(0, r.dispatchTime - r.enqueueTime));
+    }
+
+    private static void dumpDelayStats(PrintWriter pw, String title,
+            ArrayMap<String, DelayStats> statsMap) {
+        pw.println(title);
+        for (int i = 0; i < statsMap.size(); i++) {
+            final DelayStats stats = statsMap.valueAt(i);
+            pw.print("    "); pw.print(statsMap.keyAt(i));
+            pw.print(": count="); pw.print(stats.count);
+            pw.print(" avg="); TimeUtils.formatDuration(stats.totalMs / stats.count, pw);
+            pw.print(" max="); TimeUtils.formatDuration(stats.maxMs, pw);
+            pw.println();
+        }
+    }
+
     private final int ringAdvance(int x, final int increment, final int ringSize) {
         x += increment;
         if (x < 0) return (ringSize - 1);
@@ -1685,6 +1867,28 @@ public final class BroadcastQueue {
             }
         } while (ringIndex != lastIndex);
 
+        if (dumpPackage == null && mReplacedBroadcastCount > 0) {
+            if (needSep) {
+                pw.println();
+            }
+            needSep = true;
+            pw.print("  Replaced pending broadcasts ["); pw.print(mQueueName); pw.print("]: ");
+            pw.print(mReplacedBroadcastCount); pw.print(" (");
+            pw.print(mReplacedDeliveryCount); pw.println(" deliveries saved)");
+        }
+
+        if (dumpPackage == null && (mDispatchDelayStats.size() > 0
+                || mReceiverProcessStats.size() > 0)) {
+            if (needSep) {
+                pw.println();
+            }
+            needSep = true;
+            dumpDelayStats(pw, "  Dispatch delay by action [" + mQueueName + "]:",
+                    mDispatchDelayStats);
+            dumpDelayStats(pw, "  Ordered receiver time by process [" + mQueueName + "]:",
+                    mReceiverProcessStats);
+        }
+
         if (dumpPackage == null) {
             lastIndex = ringIndex = mSummaryHistoryNext;
             if (dumpAll) {
@@ -60,6 +60,7 @@ final class BroadcastRecord extends Binder {
     final List receivers;   // contains BroadcastFilter and ResolveInfo
     final int[] delivery;   // delivery state of each receiver
     IIntentReceiver resultTo; // who receives final result if non-null
+    long enqueueTime;       // when the broadcast was enqueued
     long enqueueClockTime;  // the clock time the broadcast was enqueued
     long dispatchTime;      // when dispatch started on this set of receivers
     long dispatchClockTime; // the clock time the dispatch started
@@ -76,6 +77,8 @@ final class BroadcastRecord extends Binder {
     int manifestCount;      // number of manifest receivers dispatched.
     int manifestSkipCount;  // number of manifest receivers skipped.
     BroadcastQueue queue;   // the outbound queue handling this broadcast
+    int queueSeq;           // absolute position in the queue's parallel or ordered list
+    BroadcastQueue.PendingKey pendingKey; // key in the queue's pending index
 
     static final int IDLE = 0;
     static final int APP_RECEIVE = 1;
@@ -272,6 +275,7 @@ final class BroadcastRecord extends Binder {
         receivers = from.receivers;
         delivery = from.delivery;
         resultTo = from.resultTo;
+        enqueueTime = from.enqueueTime;
         enqueueClockTime = from.enqueueClockTime;
         dispatchTime = from.dispatchTime;
         dispatchClockTime = from.dispatchClockTime;
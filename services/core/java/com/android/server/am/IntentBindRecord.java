@@ -45,6 +45,8 @@ final class IntentBindRecord {
     boolean hasBound;
     /** Set when the service's onUnbind() has asked to be told about new clients. */
     boolean doRebind;
+    /** Time the binder was last requested from the service, 0 once it was published. */
+    long requestTime;
     
     String stringName;      // caching of toString
     
@@ -20,6 +20,7 @@ import android.content.ComponentName;
 import android.os.Binder;
 import android.os.RemoteException;
 import android.os.UserHandle;
+import android.util.ArrayMap;
 import android.util.Slog;
 import android.util.SparseArray;
 import com.android.internal.os.TransferPipe;
@@ -43,6 +44,12 @@ public final class ProviderMap {
 
     private static final boolean DBG = false;
 
+    /** How long an authority that failed to resolve is remembered as missing. */
+    private static final long MISSING_PROVIDER_TIMEOUT = 1000;
+
+    /** Upper bound on the number of remembered missing authorities across all callers. */
+    private static final int MAX_MISSING_PROVIDERS = 256;
+
     private final ActivityManagerService mAm;
 
     private final HashMap<String, ContentProviderRecord> mSingletonByName
@@ -55,6 +62,25 @@ public final class ProviderMap {
     private final SparseArray<HashMap<ComponentName, ContentProviderRecord>> mProvidersByClassPerUser
             = new SparseArray<HashMap<ComponentName, ContentProviderRecord>>();
 
+    /**
+     * Authorities that package manager recently failed to resolve, by calling uid.  The answer
+     * depends on the caller (instant apps see fewer providers) and on whether the user is
+     * unlocked, so both are part of the entry.
+     */
+    private final SparseArray<ArrayMap<String, MissingProvider>> mMissingProviders
+            = new SparseArray<>();
+    private int mMissingProviderCount;
+
+    private static final class MissingProvider {
+        final long time;
+        final boolean userUnlocked;
+
+        MissingProvider(long time, boolean userUnlocked) {
+            this.time = time;
+            this.userUnlocked = userUnlocked;
+        }
+    }
+
     ProviderMap(ActivityManagerService am) {
         mAm = am;
     }
@@ -159,6 +185,52 @@ public final class ProviderMap {
         }
     }
 
+    /**
+     * Returns whether resolving {@code name} for {@code callingUid} failed within the last
+     * {@link #MISSING_PROVIDER_TIMEOUT}, while the user was in the same locked state.
+     */
+    boolean isProviderMissingLocked(String name, int callingUid, boolean userUnlocked,
+            long now) {
+        final ArrayMap<String, MissingProvider> missing = mMissingProviders.get(callingUid);
+        if (missing == null) {
+            return false;
+        }
+        final MissingProvider entry = missing.get(name);
+        if (entry == null) {
+            return false;
+        }
+        if (entry.userUnlocked != userUnlocked || now - entry.time >= MISSING_PROVIDER_TIMEOUT) {
+            missing.remove(name);
+            mMissingProviderCount--;
+            if (missing.isEmpty()) {
+                mMissingProviders.remove(callingUid);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    void noteProviderMissingLocked(String name, int callingUid, boolean userUnlocked,
+            long now) {
+        if (mMissingProviderCount >= MAX_MISSING_PROVIDERS) {
+            clearMissingProvidersLocked();
+        }
+        ArrayMap<String, MissingProvider> missing = mMissingProviders.get(callingUid);
+        if (missing == null) {
+            missing = new ArrayMap<>();
+            mMissingProviders.put(callingUid, missing);
+        }
+        if (missing.put(name, new MissingProvider(now, userUnlocked)) == null) {
+            mMissingProviderCount++;
+        }
+    }
+
+    /** Forgets all missing authorities, called whenever installed packages change. */
+    void clearMissingProvidersLocked() {
+        mMissingProviders.clear();
+        mMissingProviderCount = 0;
+    }
+
     private HashMap<String, ContentProviderRecord> getProvidersByName(int userId) {
         if (userId < 0) throw new IllegalArgumentException("Bad user " + userId);
         final HashMap<String, ContentProviderRecord> map = mProvidersByNamePerUser.get(userId);
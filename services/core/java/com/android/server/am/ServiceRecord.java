@@ -116,11 +116,61 @@ final class ServiceRecord extends Binder {
     long nextRestartTime;   // time when restartDelay will expire.
     boolean destroying;     // set when we have started destroying the service
     long destroyTime;       // time at which destory was initiated.
+    long createRequestTime; // time scheduleCreateService was sent, 0 once it completed.
+
+    // How long the app took to handle create, bind and start requests for this service.
+    final LatencyStats createLatency = new LatencyStats();
+    final LatencyStats bindLatency = new LatencyStats();
+    final LatencyStats startLatency = new LatencyStats();
 
     String stringName;      // caching of toString
 
     private int lastStartId;    // identifier of most recent start request.
 
+    /**
+     * Histogram of the time between sending a request to the app and the app reporting
+     * that it is done with it.
+     */
+    static final class LatencyStats {
+        private static final long[] BUCKET_LIMITS_MS = { 10, 50, 100, 500, 1000, 5000 };
+
+        final int[] buckets = new int[BUCKET_LIMITS_MS.length + 1];
+        int count;
+        long totalMs;
+        long maxMs;
+
+        void add(long latencyMs) {
+            int i = 0;
+            while (i < BUCKET_LIMITS_MS.length && latencyMs >= BUCKET_LIMITS_MS[i]) {
+                i++;
+            }
+            buckets[i]++;
+            count++;
+            totalMs += latencyMs;
+            if (latencyMs > maxMs) {
+                maxMs = latencyMs;
+            }
+        }
+
+        void dump(PrintWriter pw, String prefix, String label) {
+            pw.print(prefix); pw.print(label); pw.print(": count="); pw.print(count);
+                    pw.print(" avg="); pw.print(totalMs / count);
+                    pw.print("ms max="); pw.print(maxMs); pw.print("ms [");
+            for (int i = 0; i < buckets.length; i++) {
+                if (i > 0) {
+                    pw.print(' ');
+                }
+                if (i < BUCKET_LIMITS_MS.length) {
+                    pw.print("<"); pw.print(BUCKET_LIMITS_MS[i]);
+                } else {
+                    pw.print(">="); pw.print(BUCKET_LIMITS_MS[BUCKET_LIMITS_MS.length - 1]);
+                }
+                pw.print(':'); pw.print(buckets[i]);
+            }
+            pw.println(']');
+        }
+    }
+
     static class StartItem {
         final ServiceRecord sr;
         final boolean taskRemoved;
@@ -281,6 +331,15 @@ final class ServiceRecord extends Binder {
                     TimeUtils.formatDuration(nextRestartTime, now, pw);
                     pw.print(" crashCount="); pw.println(crashCount);
         }
+        if (createLatency.count > 0) {
+            createLatency.dump(pw, prefix, "createLatency");
+        }
+        if (bindLatency.count > 0) {
+            bindLatency.dump(pw, prefix, "bindLatency");
+        }
+        if (startLatency.count > 0) {
+            startLatency.dump(pw, prefix, "startLatency");
+        }
         if (deliveredStarts.size() > 0) {
             pw.print(prefix); pw.println("Delivered Starts:");
             dumpStartList(pw, prefix, deliveredStarts, now);
@@ -29,10 +29,12 @@ import android.util.AtomicFile;
 import android.util.Slog;
 import android.util.SparseArray;
 import android.util.SparseBooleanArray;
-import android.util.Xml;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
-import com.android.internal.util.FastXmlSerializer;
+import com.android.internal.util.BinaryXmlSerializer;
+import com.android.internal.util.DigestUtils;
+import com.android.internal.util.HexDump;
 import com.android.internal.util.XmlUtils;
 import libcore.io.IoUtils;
 
@@ -42,13 +44,16 @@ import org.xmlpull.v1.XmlSerializer;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -78,6 +83,9 @@ public class TaskPersister {
     /** Special value for mWriteTime to mean don't wait, just write */
     private static final long FLUSH_QUEUE = -1;
 
+    /** Number of leading bytes of an unreadable task file to include in the log. */
+    private static final int FILE_DUMP_PREFIX_BYTES = 64;
+
     private static final String TASKS_DIRNAME = "recent_tasks";
     private static final String TASK_FILENAME_SUFFIX = "_task.xml";
     private static final String IMAGES_DIRNAME = "recent_images";
@@ -94,6 +102,13 @@ public class TaskPersister {
     // To lock file operations in TaskPersister
     private final Object mIoLock = new Object();
 
+    /**
+     * Digest of the task file contents last written or restored for each task, per user, so
+     * that a task whose persisted state has not changed is not rewritten.
+     */
+    @GuardedBy("mTaskFileDigests")
+    private final SparseArray<SparseArray<byte[]>> mTaskFileDigests = new SparseArray<>();
+
     /**
      * Value determines write delay mode as follows: < 0 We are Flushing. No delays between writes
      * until the image queue is drained and all tasks needing persisting are written to disk. There
@@ -251,6 +266,33 @@ public class TaskPersister {
 
     void unloadUserDataFromMemory(int userId) {
         mTaskIdsInFile.delete(userId);
+        synchronized (mTaskFileDigests) {
+            mTaskFileDigests.delete(userId);
+        }
+    }
+
+    private byte[] getTaskFileDigest(int userId, int taskId) {
+        synchronized (mTaskFileDigests) {
+            final SparseArray<byte[]> digests = mTaskFileDigests.get(userId);
+            return digests != null ? digests.get(taskId) : null;
+        }
+    }
+
+    private void setTaskFileDigest(int userId, int taskId, byte[] digest) {
+        synchronized (mTaskFileDigests) {
+            SparseArray<byte[]> digests = mTaskFileDigests.get(userId);
+            if (digest == null) {
+                if (digests != null) {
+                    digests.delete(taskId);
+                }
+                return;
+            }
+            if (digests == null) {
+                digests = new SparseArray<>();
+                mTaskFileDigests.put(userId, digests);
+            }
+            digests.put(taskId, digest);
+        }
     }
 
     void wakeup(TaskRecord task, boolean flush) {
@@ -358,14 +400,13 @@ public class TaskPersister {
         }
     }
 
-    private StringWriter saveToXml(TaskRecord task) throws IOException, XmlPullParserException {
+    private byte[] saveToXml(TaskRecord task) throws IOException, XmlPullParserException {
         if (DEBUG) Slog.d(TAG, "saveToXml: task=" + task);
-        final XmlSerializer xmlSerializer = new FastXmlSerializer();
-        StringWriter stringWriter = new StringWriter();
-        xmlSerializer.setOutput(stringWriter);
-
-        if (DEBUG) xmlSerializer.setFeature(
-                "http://xmlpull.org/v1/doc/features.html#indent-output", true);
+        // Task files are only ever read back by restoreTasksForUserLocked, so use the compact
+        // binary encoding; files written as XML text by older builds are still readable.
+        final XmlSerializer xmlSerializer = new BinaryXmlSerializer();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        xmlSerializer.setOutput(out, StandardCharsets.UTF_8.name());
 
         // save task
         xmlSerializer.startDocument(null, true);
@@ -377,24 +418,29 @@ public class TaskPersister {
         xmlSerializer.endDocument();
         xmlSerializer.flush();
 
-        return stringWriter;
+        return out.toByteArray();
     }
 
-    private String fileToString(File file) {
-        final String newline = System.lineSeparator();
-        try {
-            BufferedReader reader = new BufferedReader(new FileReader(file));
-            StringBuffer sb = new StringBuffer((int) file.length() * 2);
-            String line;
-            while ((line = reader.readLine()) != null) {
-                sb.append(line + newline);
+    /**
+     * Describes a task file for the log: its name, its size and a hex dump of its first
+     * bytes. Task files are binary XML, so dumping them as text would only produce noise.
+     */
+    private static String describeFile(File file) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(file.getName()).append(" (").append(file.length()).append(" bytes");
+        try (FileInputStream in = new FileInputStream(file)) {
+            final byte[] prefix = new byte[FILE_DUMP_PREFIX_BYTES];
+            int count = 0;
+            int read;
+            while (count < prefix.length
+                    && (read = in.read(prefix, count, prefix.length - count)) > 0) {
+                count += read;
             }
-            reader.close();
-            return sb.toString();
-        } catch (IOException ioe) {
-            Slog.e(TAG, "Couldn't read file " + file.getName());
-            return null;
+            sb.append(", starts with ").append(HexDump.toHexString(prefix, 0, count));
+        } catch (IOException e) {
+            sb.append(", unreadable: ").append(e.getMessage());
         }
+        return sb.append(')').toString();
     }
 
     private TaskRecord taskIdToTask(int taskId, ArrayList<TaskRecord> tasks) {
@@ -447,12 +493,13 @@ public class TaskPersister {
                 continue;
             }
 
-            BufferedReader reader = null;
             boolean deleteFile = false;
             try {
-                reader = new BufferedReader(new FileReader(taskFile));
-                final XmlPullParser in = Xml.newPullParser();
-                in.setInput(reader);
+                // Read the whole file at once, its digest lets the writer skip rewriting the
+                // task until something in it changes.
+                final byte[] contents = IoUtils.readFileAsByteArray(taskFile.getPath());
+                final XmlPullParser in = XmlUtils.resolvePullParser(
+                        new ByteArrayInputStream(contents), null);
 
                 int event;
                 while (((event = in.next()) != XmlPullParser.END_DOCUMENT) &&
@@ -486,10 +533,12 @@ public class TaskPersister {
                                     task.isPersistable = true;
                                     tasks.add(task);
                                     recoveredTaskIds.add(taskId);
+                                    setTaskFileDigest(userId, taskId,
+                                            DigestUtils.computeDigest(contents));
                                 }
                             } else {
                                 Slog.e(TAG, "restoreTasksForUserLocked: Unable to restore taskFile="
-                                        + taskFile + ": " + fileToString(taskFile));
+                                        + taskFile + ": " + describeFile(taskFile));
                             }
                         } else {
                             Slog.wtf(TAG, "restoreTasksForUserLocked: Unknown xml event=" + event
@@ -500,10 +549,9 @@ public class TaskPersister {
                 }
             } catch (Exception e) {
                 Slog.wtf(TAG, "Unable to parse " + taskFile + ". Error ", e);
-                Slog.e(TAG, "Failing file: " + fileToString(taskFile));
+                Slog.e(TAG, "Failing file: " + describeFile(taskFile));
                 deleteFile = true;
             } finally {
-                IoUtils.closeQuietly(reader);
                 if (deleteFile) {
                     if (DEBUG) Slog.d(TAG, "Deleting file=" + taskFile.getName());
                     taskFile.delete();
@@ -598,6 +646,21 @@ public class TaskPersister {
         for (int userId : candidateUserIds) {
             removeObsoleteFiles(persistentTaskIds, getUserImagesDir(userId).listFiles());
             removeObsoleteFiles(persistentTaskIds, getUserTasksDir(userId).listFiles());
+            removeObsoleteTaskFileDigests(persistentTaskIds, userId);
+        }
+    }
+
+    private void removeObsoleteTaskFileDigests(ArraySet<Integer> persistentTaskIds, int userId) {
+        synchronized (mTaskFileDigests) {
+            final SparseArray<byte[]> digests = mTaskFileDigests.get(userId);
+            if (digests == null) {
+                return;
+            }
+            for (int i = digests.size() - 1; i >= 0; i--) {
+                if (!persistentTaskIds.contains(digests.keyAt(i))) {
+                    digests.removeAt(i);
+                }
+            }
         }
     }
 
@@ -750,7 +813,7 @@ public class TaskPersister {
                 }
             } else if (item instanceof TaskWriteQueueItem) {
                 // Write out one task.
-                StringWriter stringWriter = null;
+                byte[] contents = null;
                 TaskRecord task = ((TaskWriteQueueItem) item).mTask;
                 if (DEBUG) Slog.d(TAG, "Writing task=" + task);
                 synchronized (mService) {
@@ -758,31 +821,40 @@ public class TaskPersister {
                         // Still there.
                         try {
                             if (DEBUG) Slog.d(TAG, "Saving task=" + task);
-                            stringWriter = saveToXml(task);
+                            contents = saveToXml(task);
                         } catch (IOException e) {
                         } catch (XmlPullParserException e) {
                         }
                     }
                 }
-                if (stringWriter != null) {
-                    // Write out xml file while not holding mService lock.
-                    FileOutputStream file = null;
-                    AtomicFile atomicFile = null;
-                    try {
-                        atomicFile = new AtomicFile(new File(
-                                getUserTasksDir(task.userId),
-                                String.valueOf(task.taskId) + TASK_FILENAME_SUFFIX));
-                        file = atomicFile.startWrite();
-                        file.write(stringWriter.toString().getBytes());
-                        file.write('\n');
-                        atomicFile.finishWrite(file);
-                    } catch (IOException e) {
-                        if (file != null) {
-                            atomicFile.failWrite(file);
-                        }
-                        Slog.e(TAG,
-                                "Unable to open " + atomicFile + " for persisting. " + e);
+                if (contents == null) {
+                    setTaskFileDigest(task.userId, task.taskId, null);
+                    return;
+                }
+                final File taskFile = new File(getUserTasksDir(task.userId),
+                        String.valueOf(task.taskId) + TASK_FILENAME_SUFFIX);
+                final byte[] digest = DigestUtils.computeDigest(contents);
+                if (DigestUtils.isUnchanged(digest,
+                        getTaskFileDigest(task.userId, task.taskId), taskFile)) {
+                    if (DEBUG) Slog.d(TAG, "Task unchanged since last write, task=" + task);
+                    return;
+                }
+                // Write out xml file while not holding mService lock.
+                FileOutputStream file = null;
+                AtomicFile atomicFile = null;
+                try {
+                    atomicFile = new AtomicFile(taskFile);
+                    file = atomicFile.startWrite();
+                    file.write(contents);
+                    atomicFile.finishWrite(file);
+                    setTaskFileDigest(task.userId, task.taskId, digest);
+                } catch (IOException e) {
+                    if (file != null) {
+                        atomicFile.failWrite(file);
                     }
+                    setTaskFileDigest(task.userId, task.taskId, null);
+                    Slog.e(TAG,
+                            "Unable to open " + atomicFile + " for persisting. " + e);
                 }
             }
         }
@@ -25,6 +25,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 
@@ -62,6 +63,7 @@ import android.os.ResultReceiver;
 import android.os.ServiceManager;
 import android.os.ShellCallback;
 import android.os.SystemClock;
+import android.os.Trace;
 import android.os.UserHandle;
 import android.os.UserManagerInternal;
 import android.provider.Settings;
@@ -145,6 +147,12 @@ public final class JobSchedulerService extends com.android.server.SystemService
      * when ready to execute them.
      */
     final ArrayList<JobStatus> mPendingJobs = new ArrayList<>();
+    /**
+     * The same jobs as {@link #mPendingJobs}, for quick membership checks. Only modify
+     * the pending queue through {@link #addPendingJobLocked}, {@link #addPendingJobsLocked},
+     * {@link #removePendingJobLocked} and {@link #clearPendingJobsLocked} to keep both in sync.
+     */
+    final HashSet<JobStatus> mPendingJobSet = new HashSet<>();
 
     int[] mStartedUsers = EmptyArray.INT;
 
@@ -198,6 +206,15 @@ public final class JobSchedulerService extends com.android.server.SystemService
      * The uid whose jobs we would like to assign to a context.
      */
     int[] mTmpAssignPreferredUidForContext = new int[MAX_JOB_CONTEXTS_COUNT];
+    /**
+     * The pending jobs in the order they are offered to contexts; see
+     * {@link #orderPendingJobsByUidLocked}.
+     */
+    final ArrayList<JobStatus> mTmpAssignOrder = new ArrayList<>();
+    /**
+     * Number of pending jobs seen so far for each uid while ordering the pending queue.
+     */
+    final SparseIntArray mTmpAssignUidRank = new SparseIntArray();
 
     /**
      * All times are in milliseconds. These constants are kept synchronized with the system
@@ -490,6 +507,47 @@ public final class JobSchedulerService extends com.android.server.SystemService
         array.add(where, newItem);
     }
 
+    private void addPendingJobLocked(JobStatus job) {
+        if (mPendingJobSet.add(job)) {
+            mJobPackageTracker.notePending(job);
+            addOrderedItem(mPendingJobs, job, mEnqueueTimeComparator);
+        }
+    }
+
+    private void addPendingJobsLocked(List<JobStatus> jobs) {
+        boolean added = false;
+        for (int i = 0; i < jobs.size(); i++) {
+            final JobStatus job = jobs.get(i);
+            if (mPendingJobSet.add(job)) {
+                mJobPackageTracker.notePending(job);
+                mPendingJobs.add(job);
+                added = true;
+            }
+        }
+        if (added && mPendingJobs.size() > 1) {
+            mPendingJobs.sort(mEnqueueTimeComparator);
+        }
+    }
+
+    private boolean removePendingJobLocked(JobStatus job) {
+        if (!mPendingJobSet.remove(job)) {
+            return false;
+        }
+        mPendingJobs.remove(job);
+        mJobPackageTracker.noteNonpending(job);
+        return true;
+    }
+
+    private void clearPendingJobsLocked() {
+        noteJobsNonpending(mPendingJobs);
+        mPendingJobs.clear();
+        mPendingJobSet.clear();
+    }
+
+    boolean isPendingLocked(JobStatus job) {
+        return mPendingJobSet.contains(job);
+    }
+
     /**
      * Cleans up outstanding jobs when a package is removed. Even if it's being replaced later we
      * still clean up. On reinstall the package will have a new uid.
@@ -710,8 +768,7 @@ public final class JobSchedulerService extends com.android.server.SystemService
             if (isReadyToBeExecutedLocked(jobStatus)) {
                 // This is a new job, we can just immediately put it on the pending
                 // list and try to run it.
-                mJobPackageTracker.notePending(jobStatus);
-                addOrderedItem(mPendingJobs, jobStatus, mEnqueueTimeComparator);
+                addPendingJobLocked(jobStatus);
                 maybeRunPendingJobsLocked();
             }
         }
@@ -819,9 +876,7 @@ public final class JobSchedulerService extends com.android.server.SystemService
         cancelled.unprepareLocked(ActivityManager.getService());
         stopTrackingJobLocked(cancelled, incomingJob, true /* writeBack */);
         // Remove from pending queue.
-        if (mPendingJobs.remove(cancelled)) {
-            mJobPackageTracker.noteNonpending(cancelled);
-        }
+        removePendingJobLocked(cancelled);
         // Cancel if running.
         stopJobOnServiceContextLocked(cancelled, JobParameters.REASON_CANCELED, reason);
         reportActiveLocked();
@@ -1110,13 +1165,6 @@ public final class JobSchedulerService extends com.android.server.SystemService
         return false;
     }
 
-    void noteJobsPending(List<JobStatus> jobs) {
-        for (int i = jobs.size() - 1; i >= 0; i--) {
-            JobStatus job = jobs.get(i);
-            mJobPackageTracker.notePending(job);
-        }
-    }
-
     void noteJobsNonpending(List<JobStatus> jobs) {
         for (int i = jobs.size() - 1; i >= 0; i--) {
             JobStatus job = jobs.get(i);
@@ -1313,8 +1361,7 @@ public final class JobSchedulerService extends com.android.server.SystemService
                         // runNow can be null, which is a controller's way of indicating that its
                         // state is such that all ready jobs should be run immediately.
                         if (runNow != null && isReadyToBeExecutedLocked(runNow)) {
-                            mJobPackageTracker.notePending(runNow);
-                            addOrderedItem(mPendingJobs, runNow, mEnqueueTimeComparator);
+                            addPendingJobLocked(runNow);
                         } else {
                             queueReadyJobsForExecutionLocked();
                         }
@@ -1363,8 +1410,7 @@ public final class JobSchedulerService extends com.android.server.SystemService
         if (DEBUG) {
             Slog.d(TAG, "queuing all ready jobs for execution:");
         }
-        noteJobsNonpending(mPendingJobs);
-        mPendingJobs.clear();
+        clearPendingJobsLocked();
         stopNonReadyActiveJobsLocked();
         mJobs.forEachJob(mReadyQueueFunctor);
         mReadyQueueFunctor.postProcess();
@@ -1397,11 +1443,7 @@ public final class JobSchedulerService extends com.android.server.SystemService
 
         public void postProcess() {
             if (newReadyJobs != null) {
-                noteJobsPending(newReadyJobs);
-                mPendingJobs.addAll(newReadyJobs);
-                if (mPendingJobs.size() > 1) {
-                    mPendingJobs.sort(mEnqueueTimeComparator);
-                }
+                addPendingJobsLocked(newReadyJobs);
             }
             newReadyJobs = null;
         }
@@ -1486,11 +1528,7 @@ public final class JobSchedulerService extends com.android.server.SystemService
                 if (DEBUG) {
                     Slog.d(TAG, "maybeQueueReadyJobsForExecutionLocked: Running jobs.");
                 }
-                noteJobsPending(runnableJobs);
-                mPendingJobs.addAll(runnableJobs);
-                if (mPendingJobs.size() > 1) {
-                    mPendingJobs.sort(mEnqueueTimeComparator);
-                }
+                addPendingJobsLocked(runnableJobs);
             } else {
                 if (DEBUG) {
                     Slog.d(TAG, "maybeQueueReadyJobsForExecutionLocked: Not running anything.");
@@ -1517,8 +1555,7 @@ public final class JobSchedulerService extends com.android.server.SystemService
     private void maybeQueueReadyJobsForExecutionLocked() {
         if (DEBUG) Slog.d(TAG, "Maybe queuing ready jobs...");
 
-        noteJobsNonpending(mPendingJobs);
-        mPendingJobs.clear();
+        clearPendingJobsLocked();
         stopNonReadyActiveJobsLocked();
         mJobs.forEachJob(mMaybeQueueFunctor);
         mMaybeQueueFunctor.postProcess();
@@ -1563,7 +1600,7 @@ public final class JobSchedulerService extends com.android.server.SystemService
             return false;
         }
 
-        final boolean jobPending = mPendingJobs.contains(job);
+        final boolean jobPending = isPendingLocked(job);
         final boolean jobActive = isCurrentlyActiveLocked(job);
 
         if (DEBUG) {
@@ -1605,7 +1642,14 @@ public final class JobSchedulerService extends com.android.server.SystemService
         if (DEBUG) {
             Slog.d(TAG, "pending queue: " + mPendingJobs.size() + " jobs.");
         }
-        assignJobsToContextsLocked();
+        Trace.traceCounter(Trace.TRACE_TAG_SYSTEM_SERVER, "JobScheduler pending",
+                mPendingJobs.size());
+        Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, "assignJobsToContexts");
+        try {
+            assignJobsToContextsLocked();
+        } finally {
+            Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+        }
         reportActiveLocked();
     }
 
@@ -1633,10 +1677,55 @@ public final class JobSchedulerService extends com.android.server.SystemService
         return adjustJobPriority(priority, job);
     }
 
+    /**
+     * Fills {@code out} with the pending jobs in round-robin order across uids: the oldest
+     * pending job of each uid, then the second oldest of each, and so on.  Within a round,
+     * uids keep the order of their jobs in the queue.  This way an app that enqueued many
+     * jobs at once can not take every free context ahead of the jobs of other apps.
+     */
+    private void orderPendingJobsByUidLocked(ArrayList<JobStatus> out) {
+        out.clear();
+        final int numPending = mPendingJobs.size();
+        final SparseIntArray uidRank = mTmpAssignUidRank;
+        uidRank.clear();
+        final int[] ranks = new int[numPending];
+        int maxRank = 0;
+        for (int i = 0; i < numPending; i++) {
+            final int uid = mPendingJobs.get(i).getUid();
+            final int rank = uidRank.get(uid, 0);
+            uidRank.put(uid, rank + 1);
+            ranks[i] = rank;
+            if (rank > maxRank) {
+                maxRank = rank;
+            }
+        }
+        uidRank.clear();
+        if (maxRank == 0) {
+            // One job per uid: the queue order already is the round-robin order.
+            out.addAll(mPendingJobs);
+            return;
+        }
+
+        // Stable counting sort of the queue by rank.
+        final int[] rankStart = new int[maxRank + 2];
+        for (int i = 0; i < numPending; i++) {
+            rankStart[ranks[i] + 1]++;
+        }
+        for (int r = 1; r < rankStart.length; r++) {
+            rankStart[r] += rankStart[r - 1];
+        }
+        final JobStatus[] ordered = new JobStatus[numPending];
+        for (int i = 0; i < numPending; i++) {
+            ordered[rankStart[ranks[i]]++] = mPendingJobs.get(i);
+        }
+        Collections.addAll(out, ordered);
+    }
+
     /**
      * Takes jobs from pending queue and runs them on available contexts.
      * If no contexts are available, preempts lower priority jobs to
-     * run higher priority ones.
+     * run higher priority ones.  Pending jobs are offered to the contexts
+     * round-robin across uids, see {@link #orderPendingJobsByUidLocked}.
      * Lock on mJobs before calling this function.
      */
     private void assignJobsToContextsLocked() {
@@ -1685,8 +1774,10 @@ public final class JobSchedulerService extends com.android.server.SystemService
         if (DEBUG) {
             Slog.d(TAG, printContextIdToJobMap(contextIdToJobMap, "running jobs initial"));
         }
-        for (int i=0; i<mPendingJobs.size(); i++) {
-            JobStatus nextPending = mPendingJobs.get(i);
+        final ArrayList<JobStatus> pendingOrder = mTmpAssignOrder;
+        orderPendingJobsByUidLocked(pendingOrder);
+        for (int i=0; i<pendingOrder.size(); i++) {
+            JobStatus nextPending = pendingOrder.get(i);
 
             // If job is already running, go to next job.
             int jobRunningContext = findJobContextIdFromMap(nextPending, contextIdToJobMap);
@@ -1741,6 +1832,7 @@ public final class JobSchedulerService extends com.android.server.SystemService
                 }
             }
         }
+        pendingOrder.clear();
         if (DEBUG) {
             Slog.d(TAG, printContextIdToJobMap(contextIdToJobMap, "running jobs final"));
         }
@@ -1768,9 +1860,7 @@ public final class JobSchedulerService extends com.android.server.SystemService
                     if (!mActiveServices.get(i).executeRunnableJob(pendingJob)) {
                         Slog.d(TAG, "Error executing " + pendingJob);
                     }
-                    if (mPendingJobs.remove(pendingJob)) {
-                        mJobPackageTracker.noteNonpending(pendingJob);
-                    }
+                    removePendingJobLocked(pendingJob);
                 }
             }
             if (!preservePreferredUid) {
@@ -2193,7 +2283,7 @@ public final class JobSchedulerService extends com.android.server.SystemService
                 }
 
                 boolean printed = false;
-                if (mPendingJobs.contains(js)) {
+                if (isPendingLocked(js)) {
                     pw.print("pending");
                     printed = true;
                 }
@@ -2356,7 +2446,7 @@ public final class JobSchedulerService extends com.android.server.SystemService
                     pw.print(" user=");
                     pw.print(ArrayUtils.contains(mStartedUsers, job.getUserId()));
                     pw.print(" !pending=");
-                    pw.print(!mPendingJobs.contains(job));
+                    pw.print(!isPendingLocked(job));
                     pw.print(" !active=");
                     pw.print(!isCurrentlyActiveLocked(job));
                     pw.print(" !backingup=");
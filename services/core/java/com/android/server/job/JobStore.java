@@ -33,21 +33,24 @@ import android.util.ArraySet;
 import android.util.Pair;
 import android.util.Slog;
 import android.util.SparseArray;
-import android.util.Xml;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ArrayUtils;
-import com.android.internal.util.FastXmlSerializer;
+import com.android.internal.util.BinaryXmlSerializer;
+import com.android.internal.util.DigestUtils;
+import com.android.internal.util.XmlUtils;
 import com.android.server.IoThread;
 import com.android.server.job.JobSchedulerInternal.JobStorePersistStats;
 import com.android.server.job.controllers.JobStatus;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
@@ -87,6 +90,29 @@ public final class JobStore {
 
     private static final Object sSingletonLock = new Object();
     private final AtomicFile mJobsFile;
+    /**
+     * Digest of the jobs file contents last written or read, so that a write which would
+     * produce the same file is skipped.
+     */
+    @GuardedBy("mLock")
+    private byte[] mJobsFileDigest;
+    /**
+     * Wall clock minus elapsed realtime, as used by the last write to convert delay and
+     * deadline times to the wall clock timebase. Reusing it keeps those times, and so the
+     * digest, identical across writes of unchanged jobs; recomputing it would shift them by
+     * the milliseconds between the two clock reads. Only replaced once the clocks have moved
+     * apart by more than {@link #RTC_OFFSET_TOLERANCE_MS}, i.e. the wall clock was changed.
+     */
+    @GuardedBy("mLock")
+    private long mRtcOffset;
+    @GuardedBy("mLock")
+    private boolean mHaveRtcOffset;
+    /** Number of writes skipped because the jobs file would not have changed. */
+    @GuardedBy("mLock")
+    private int mSkippedWriteCount;
+
+    /** Largest drift between wall clock and elapsed realtime before a new offset is taken. */
+    private static final long RTC_OFFSET_TOLERANCE_MS = 1000;
     /** Handler backed by IoThread for writing to disk. */
     private final Handler mIoHandler = IoThread.getHandler();
     private static JobStore sSingleton;
@@ -298,7 +324,7 @@ public final class JobStore {
 
     /**
      * Every time the state changes we write all the jobs in one swath, instead of trying to
-     * track incremental changes.
+     * track incremental changes. The write is skipped if the file would not change.
      */
     private void maybeWriteStatusToDiskAsync() {
         mDirtyOperations++;
@@ -311,6 +337,27 @@ public final class JobStore {
         }
     }
 
+    /**
+     * Returns the wall clock minus elapsed realtime offset to persist job times with; see
+     * {@link #mRtcOffset}.
+     */
+    @GuardedBy("mLock")
+    private long getRtcOffsetLocked() {
+        final long offset = System.currentTimeMillis() - SystemClock.elapsedRealtime();
+        if (!mHaveRtcOffset || Math.abs(offset - mRtcOffset) > RTC_OFFSET_TOLERANCE_MS) {
+            mRtcOffset = offset;
+            mHaveRtcOffset = true;
+        }
+        return mRtcOffset;
+    }
+
+    @VisibleForTesting
+    int getSkippedWriteCount() {
+        synchronized (mLock) {
+            return mSkippedWriteCount;
+        }
+    }
+
     @VisibleForTesting
     public void readJobMapFromDisk(JobSet jobSet, boolean rtcGood) {
         new ReadJobMapFromDiskRunnable(jobSet, rtcGood).run();
@@ -325,7 +372,9 @@ public final class JobStore {
         public void run() {
             final long startElapsed = SystemClock.elapsedRealtime();
             final List<JobStatus> storeCopy = new ArrayList<JobStatus>();
+            final long rtcOffset;
             synchronized (mLock) {
+                rtcOffset = getRtcOffsetLocked();
                 // Clone the jobs so we can release the lock before writing.
                 mJobSet.forEachJob(new JobStatusFunctor() {
                     @Override
@@ -336,23 +385,25 @@ public final class JobStore {
                     }
                 });
             }
-            writeJobsMapImpl(storeCopy);
+            writeJobsMapImpl(storeCopy, rtcOffset);
             if (DEBUG) {
                 Slog.v(TAG, "Finished writing, took " + (SystemClock.elapsedRealtime()
                         - startElapsed) + "ms");
             }
         }
 
-        private void writeJobsMapImpl(List<JobStatus> jobList) {
+        private void writeJobsMapImpl(List<JobStatus> jobList, long rtcOffset) {
             int numJobs = 0;
             int numSystemJobs = 0;
             int numSyncJobs = 0;
             try {
+                // The jobs file is only ever read back by ReadJobMapFromDiskRunnable, so
+                // use the compact binary encoding; files written as XML text by older builds
+                // are still readable.
                 ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                XmlSerializer out = new FastXmlSerializer();
+                XmlSerializer out = new BinaryXmlSerializer();
                 out.setOutput(baos, StandardCharsets.UTF_8.name());
                 out.startDocument(null, true);
-                out.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
 
                 out.startTag(null, "job-info");
                 out.attribute(null, "version", Integer.toString(JOBS_FILE_VERSION));
@@ -364,7 +415,7 @@ public final class JobStore {
                     out.startTag(null, "job");
                     addAttributesToJobTag(out, jobStatus);
                     writeConstraintsToXml(out, jobStatus);
-                    writeExecutionCriteriaToXml(out, jobStatus);
+                    writeExecutionCriteriaToXml(out, jobStatus, rtcOffset);
                     writeBundleToXml(jobStatus.getJob().getExtras(), out);
                     out.endTag(null, "job");
 
@@ -379,10 +430,35 @@ public final class JobStore {
                 out.endTag(null, "job-info");
                 out.endDocument();
 
+                final byte[] contents = baos.toByteArray();
+                final byte[] digest = DigestUtils.computeDigest(contents);
+                synchronized (mLock) {
+                    if (DigestUtils.isUnchanged(digest, mJobsFileDigest,
+                            mJobsFile.getBaseFile())) {
+                        if (DEBUG) {
+                            Slog.v(TAG, "Persisted jobs unchanged, skipping write.");
+                        }
+                        mDirtyOperations = 0;
+                        mSkippedWriteCount++;
+                        return;
+                    }
+                    // Forget the old digest until the new file is complete, so a failed
+                    // write is retried next time even if the jobs change back.
+                    mJobsFileDigest = null;
+                }
+
                 // Write out to disk in one fell swoop.
                 FileOutputStream fos = mJobsFile.startWrite();
-                fos.write(baos.toByteArray());
-                mJobsFile.finishWrite(fos);
+                try {
+                    fos.write(contents);
+                    mJobsFile.finishWrite(fos);
+                } catch (IOException e) {
+                    mJobsFile.failWrite(fos);
+                    throw e;
+                }
+                synchronized (mLock) {
+                    mJobsFileDigest = digest;
+                }
                 mDirtyOperations = 0;
             } catch (IOException e) {
                 if (DEBUG) {
@@ -478,8 +554,12 @@ public final class JobStore {
             out.endTag(null, XML_TAG_PARAMS_CONSTRAINTS);
         }
 
-        private void writeExecutionCriteriaToXml(XmlSerializer out, JobStatus jobStatus)
-                throws IOException {
+        /**
+         * @param rtcOffset wall clock minus elapsed realtime, used to convert the job's
+         *     elapsed-timebase bounds to wall clock times.
+         */
+        private void writeExecutionCriteriaToXml(XmlSerializer out, JobStatus jobStatus,
+                long rtcOffset) throws IOException {
             final JobInfo job = jobStatus.getJob();
             if (jobStatus.getJob().isPeriodic()) {
                 out.startTag(null, XML_TAG_PERIODIC);
@@ -497,18 +577,16 @@ public final class JobStore {
                 Slog.i(TAG, "storing original UTC timestamps for " + jobStatus);
             }
 
-            final long nowRTC = System.currentTimeMillis();
-            final long nowElapsed = SystemClock.elapsedRealtime();
             if (jobStatus.hasDeadlineConstraint()) {
                 // Wall clock deadline.
                 final long deadlineWallclock = (utcJobTimes == null)
-                        ? nowRTC + (jobStatus.getLatestRunTimeElapsed() - nowElapsed)
+                        ? jobStatus.getLatestRunTimeElapsed() + rtcOffset
                         : utcJobTimes.second;
                 out.attribute(null, "deadline", Long.toString(deadlineWallclock));
             }
             if (jobStatus.hasTimingDelayConstraint()) {
                 final long delayWallclock = (utcJobTimes == null)
-                        ? nowRTC + (jobStatus.getEarliestRunTime() - nowElapsed)
+                        ? jobStatus.getEarliestRunTime() + rtcOffset
                         : utcJobTimes.first;
                 out.attribute(null, "delay", Long.toString(delayWallclock));
             }
@@ -577,8 +655,12 @@ public final class JobStore {
             int numSyncJobs = 0;
             try {
                 List<JobStatus> jobs;
-                FileInputStream fis = mJobsFile.openRead();
+                // Read the whole file at once, its digest lets the writer skip rewriting
+                // it until a persisted job changes.
+                final byte[] contents = mJobsFile.readFully();
+                InputStream fis = new ByteArrayInputStream(contents);
                 synchronized (mLock) {
+                    mJobsFileDigest = DigestUtils.computeDigest(contents);
                     jobs = readJobMapImpl(fis, rtcGood);
                     if (jobs != null) {
                         long now = SystemClock.elapsedRealtime();
@@ -616,10 +698,10 @@ public final class JobStore {
             Slog.i(TAG, "Read " + numJobs + " jobs");
         }
 
-        private List<JobStatus> readJobMapImpl(FileInputStream fis, boolean rtcIsGood)
+        private List<JobStatus> readJobMapImpl(InputStream fis, boolean rtcIsGood)
                 throws XmlPullParserException, IOException {
-            XmlPullParser parser = Xml.newPullParser();
-            parser.setInput(fis, StandardCharsets.UTF_8.name());
+            XmlPullParser parser = XmlUtils.resolvePullParser(fis,
+                    StandardCharsets.UTF_8.name());
 
             int eventType = parser.getEventType();
             while (eventType != XmlPullParser.START_TAG &&
@@ -29,6 +29,7 @@ import android.os.Process;
 import android.os.UserHandle;
 import android.util.ArraySet;
 import android.util.Slog;
+import android.util.SparseArray;
 
 import com.android.internal.annotations.GuardedBy;
 import com.android.server.job.JobSchedulerService;
@@ -53,8 +54,13 @@ public final class ConnectivityController extends StateController implements
     private boolean mConnected;
     private boolean mValidated;
 
+    /**
+     * Jobs with a connectivity constraint, indexed by source uid. Network policy changes are
+     * reported per uid, and a uid's jobs all see the same network, so this lets us look up
+     * the network state once per uid rather than once per job.
+     */
     @GuardedBy("mLock")
-    private final ArraySet<JobStatus> mTrackedJobs = new ArraySet<>();
+    private final SparseArray<ArraySet<JobStatus>> mTrackedJobs = new SparseArray<>();
 
     /** Singleton. */
     private static ConnectivityController mSingleton;
@@ -86,7 +92,13 @@ public final class ConnectivityController extends StateController implements
     public void maybeStartTrackingJobLocked(JobStatus jobStatus, JobStatus lastJob) {
         if (jobStatus.hasConnectivityConstraint()) {
             updateConstraintsSatisfied(jobStatus);
-            mTrackedJobs.add(jobStatus);
+            final int uid = jobStatus.getSourceUid();
+            ArraySet<JobStatus> jobs = mTrackedJobs.get(uid);
+            if (jobs == null) {
+                jobs = new ArraySet<>();
+                mTrackedJobs.put(uid, jobs);
+            }
+            jobs.add(jobStatus);
             jobStatus.setTrackingController(JobStatus.TRACKING_CONNECTIVITY);
         }
     }
@@ -95,17 +107,75 @@ public final class ConnectivityController extends StateController implements
     public void maybeStopTrackingJobLocked(JobStatus jobStatus, JobStatus incomingJob,
             boolean forUpdate) {
         if (jobStatus.clearTrackingController(JobStatus.TRACKING_CONNECTIVITY)) {
-            mTrackedJobs.remove(jobStatus);
+            final int uid = jobStatus.getSourceUid();
+            final ArraySet<JobStatus> jobs = mTrackedJobs.get(uid);
+            if (jobs != null && jobs.remove(jobStatus) && jobs.isEmpty()) {
+                mTrackedJobs.remove(uid);
+            }
         }
     }
 
-    private boolean updateConstraintsSatisfied(JobStatus jobStatus) {
-        final int jobUid = jobStatus.getSourceUid();
-        final boolean ignoreBlocked = (jobStatus.getFlags() & JobInfo.FLAG_WILL_BE_FOREGROUND) != 0;
-        final NetworkInfo info = mConnManager.getActiveNetworkInfoForUid(jobUid, ignoreBlocked);
-        final Network network = mConnManager.getActiveNetworkForUid(jobUid, ignoreBlocked);
+    /**
+     * The network a uid sees, either honoring or ignoring its network policy blocks.
+     */
+    private static final class UidNetworkState {
+        final NetworkInfo info;
+        final NetworkCapabilities capabilities;
+
+        UidNetworkState(NetworkInfo info, NetworkCapabilities capabilities) {
+            this.info = info;
+            this.capabilities = capabilities;
+        }
+    }
+
+    private UidNetworkState getUidNetworkState(int uid, boolean ignoreBlocked) {
+        final NetworkInfo info = mConnManager.getActiveNetworkInfoForUid(uid, ignoreBlocked);
+        final Network network = mConnManager.getActiveNetworkForUid(uid, ignoreBlocked);
         final NetworkCapabilities capabilities = (network != null)
                 ? mConnManager.getNetworkCapabilities(network) : null;
+        return new UidNetworkState(info, capabilities);
+    }
+
+    private static boolean ignoresBlocked(JobStatus jobStatus) {
+        return (jobStatus.getFlags() & JobInfo.FLAG_WILL_BE_FOREGROUND) != 0;
+    }
+
+    private boolean updateConstraintsSatisfied(JobStatus jobStatus) {
+        return updateConstraintsSatisfied(jobStatus,
+                getUidNetworkState(jobStatus.getSourceUid(), ignoresBlocked(jobStatus)));
+    }
+
+    /**
+     * Updates all of the given jobs, which must share the same source uid. The network state
+     * is only queried once for each blocking mode the jobs use.
+     */
+    private boolean updateConstraintsSatisfied(int uid, ArraySet<JobStatus> jobs) {
+        UidNetworkState state = null;
+        UidNetworkState stateIgnoringBlocked = null;
+        boolean changed = false;
+        for (int i = jobs.size() - 1; i >= 0; i--) {
+            final JobStatus js = jobs.valueAt(i);
+            final UidNetworkState jobState;
+            if (ignoresBlocked(js)) {
+                if (stateIgnoringBlocked == null) {
+                    stateIgnoringBlocked = getUidNetworkState(uid, true);
+                }
+                jobState = stateIgnoringBlocked;
+            } else {
+                if (state == null) {
+                    state = getUidNetworkState(uid, false);
+                }
+                jobState = state;
+            }
+            changed |= updateConstraintsSatisfied(js, jobState);
+        }
+        return changed;
+    }
+
+    private boolean updateConstraintsSatisfied(JobStatus jobStatus, UidNetworkState state) {
+        final int jobUid = jobStatus.getSourceUid();
+        final NetworkInfo info = state.info;
+        final NetworkCapabilities capabilities = state.capabilities;
 
         final boolean validated = (capabilities != null)
                 && capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED);
@@ -153,10 +223,15 @@ public final class ConnectivityController extends StateController implements
     private void updateTrackedJobs(int uid) {
         synchronized (mLock) {
             boolean changed = false;
-            for (int i = mTrackedJobs.size()-1; i >= 0; i--) {
-                final JobStatus js = mTrackedJobs.valueAt(i);
-                if (uid == -1 || uid == js.getSourceUid()) {
-                    changed |= updateConstraintsSatisfied(js);
+            if (uid == -1) {
+                for (int i = mTrackedJobs.size()-1; i >= 0; i--) {
+                    changed |= updateConstraintsSatisfied(mTrackedJobs.keyAt(i),
+                            mTrackedJobs.valueAt(i));
+                }
+            } else {
+                final ArraySet<JobStatus> jobs = mTrackedJobs.get(uid);
+                if (jobs != null) {
+                    changed |= updateConstraintsSatisfied(uid, jobs);
                 }
             }
             if (changed) {
@@ -172,12 +247,15 @@ public final class ConnectivityController extends StateController implements
     public void onNetworkActive() {
         synchronized (mLock) {
             for (int i = mTrackedJobs.size()-1; i >= 0; i--) {
-                final JobStatus js = mTrackedJobs.valueAt(i);
-                if (js.isReady()) {
-                    if (DEBUG) {
-                        Slog.d(TAG, "Running " + js + " due to network activity.");
+                final ArraySet<JobStatus> jobs = mTrackedJobs.valueAt(i);
+                for (int j = jobs.size()-1; j >= 0; j--) {
+                    final JobStatus js = jobs.valueAt(j);
+                    if (js.isReady()) {
+                        if (DEBUG) {
+                            Slog.d(TAG, "Running " + js + " due to network activity.");
+                        }
+                        mStateChangedListener.onRunJobNow(js);
                     }
-                    mStateChangedListener.onRunJobNow(js);
                 }
             }
         }
@@ -238,20 +316,29 @@ public final class ConnectivityController extends StateController implements
         pw.print(mConnected);
         pw.print(" validated=");
         pw.println(mValidated);
+        int numTracked = 0;
+        for (int i = 0; i < mTrackedJobs.size(); i++) {
+            numTracked += mTrackedJobs.valueAt(i).size();
+        }
         pw.print("Tracking ");
+        pw.print(numTracked);
+        pw.print(" jobs from ");
         pw.print(mTrackedJobs.size());
-        pw.println(":");
+        pw.println(" uids:");
         for (int i = 0; i < mTrackedJobs.size(); i++) {
-            final JobStatus js = mTrackedJobs.valueAt(i);
-            if (js.shouldDump(filterUid)) {
-                pw.print("  #");
-                js.printUniqueId(pw);
-                pw.print(" from ");
-                UserHandle.formatUid(pw, js.getSourceUid());
-                pw.print(": C="); pw.print(js.needsAnyConnectivity());
-                pw.print(": M="); pw.print(js.needsMeteredConnectivity());
-                pw.print(": UM="); pw.print(js.needsUnmeteredConnectivity());
-                pw.print(": NR="); pw.println(js.needsNonRoamingConnectivity());
+            final ArraySet<JobStatus> jobs = mTrackedJobs.valueAt(i);
+            for (int j = 0; j < jobs.size(); j++) {
+                final JobStatus js = jobs.valueAt(j);
+                if (js.shouldDump(filterUid)) {
+                    pw.print("  #");
+                    js.printUniqueId(pw);
+                    pw.print(" from ");
+                    UserHandle.formatUid(pw, js.getSourceUid());
+                    pw.print(": C="); pw.print(js.needsAnyConnectivity());
+                    pw.print(": M="); pw.print(js.needsMeteredConnectivity());
+                    pw.print(": UM="); pw.print(js.needsUnmeteredConnectivity());
+                    pw.print(": NR="); pw.println(js.needsNonRoamingConnectivity());
+                }
             }
         }
     }
@@ -616,7 +616,7 @@ public class PackageManagerService extends IPackageManager.Stub
      * Version number for the package parser cache. Increment this whenever the format or
      * extent of cached data changes. See {@code PackageParser#setCacheDir}.
      */
-    private static final String PACKAGE_PARSER_CACHE_VERSION = "1";
+    private static final String PACKAGE_PARSER_CACHE_VERSION = "2";
 
     /**
      * Whether the package parser cache is enabled.
@@ -699,6 +699,28 @@ public class PackageManagerService extends IPackageManager.Stub
     @GuardedBy("mPackages")
     final SparseIntArray mIsolatedOwners = new SparseIntArray();
 
+    /**
+     * Immutable map from uid to the package name of the instant app running as that uid,
+     * built from {@link #mSettings} at a given {@link Settings#sUidStateGeneration}.
+     */
+    private static final class InstantAppUidSnapshot {
+        final int generation;
+        final SparseArray<String> instantAppUids;
+
+        InstantAppUidSnapshot(int generation, SparseArray<String> instantAppUids) {
+            this.generation = generation;
+            this.instantAppUids = instantAppUids;
+        }
+    }
+
+    /** Last published instant app uid snapshot; read without holding mPackages. */
+    private volatile InstantAppUidSnapshot mInstantAppUidSnapshot;
+
+    @GuardedBy("mPackages")
+    private int mInstantAppUidSnapshotRebuilds;
+    @GuardedBy("mPackages")
+    private long mInstantAppUidSnapshotRebuildNanos;
+
     /**
      * Tracks new system packages [received in an OTA] that we expect to
      * find updated user-installed versions. Keys are package name, values
@@ -7251,11 +7273,22 @@ public class PackageManagerService extends IPackageManager.Stub
      * instant, returns {@code null}.
      */
     private String getInstantAppPackageName(int callingUid) {
+        // Nearly every binder entry point asks this first, and the answer only changes when a
+        // package is installed, removed or switches between instant and full. Serve it from
+        // the published snapshot when it is current so callers do not queue up on mPackages.
+        if (!Process.isIsolated(callingUid)) {
+            final InstantAppUidSnapshot snapshot = mInstantAppUidSnapshot;
+            if (snapshot != null
+                    && snapshot.generation == Settings.sUidStateGeneration.get()) {
+                return snapshot.instantAppUids.get(callingUid);
+            }
+        }
         synchronized (mPackages) {
-            // If the caller is an isolated app use the owner's uid for the lookup.
-            if (Process.isIsolated(callingUid)) {
-                callingUid = mIsolatedOwners.get(callingUid);
+            if (!Process.isIsolated(callingUid)) {
+                return updateInstantAppUidSnapshotLPr().instantAppUids.get(callingUid);
             }
+            // If the caller is an isolated app use the owner's uid for the lookup.
+            callingUid = mIsolatedOwners.get(callingUid);
             final int appId = UserHandle.getAppId(callingUid);
             final Object obj = mSettings.getUserIdLPr(appId);
             if (obj instanceof PackageSetting) {
@@ -7267,6 +7300,40 @@ public class PackageManagerService extends IPackageManager.Stub
         return null;
     }
 
+    /**
+     * Returns the current instant app uid snapshot, rebuilding and publishing it first if
+     * the uid state has changed since it was built.
+     */
+    @GuardedBy("mPackages")
+    private InstantAppUidSnapshot updateInstantAppUidSnapshotLPr() {
+        final int generation = Settings.sUidStateGeneration.get();
+        InstantAppUidSnapshot snapshot = mInstantAppUidSnapshot;
+        if (snapshot != null && snapshot.generation == generation) {
+            return snapshot;
+        }
+        final long startTime = SystemClock.elapsedRealtimeNanos();
+        final int[] userIds = sUserManager.getUserIds();
+        final SparseArray<String> instantAppUids = new SparseArray<>();
+        for (PackageSetting ps : mSettings.mPackages.values()) {
+            // Only rely on state that bumps the generation when it changes: the app id owner
+            // and the per-user instant flag. ps.pkg is attached later during scanning without
+            // a bump, so the package name is taken from the setting itself.
+            if (mSettings.getUserIdLPr(ps.appId) != ps) {
+                continue;
+            }
+            for (int userId : userIds) {
+                if (ps.getInstantApp(userId)) {
+                    instantAppUids.put(UserHandle.getUid(userId, ps.appId), ps.name);
+                }
+            }
+        }
+        snapshot = new InstantAppUidSnapshot(generation, instantAppUids);
+        mInstantAppUidSnapshot = snapshot;
+        mInstantAppUidSnapshotRebuilds++;
+        mInstantAppUidSnapshotRebuildNanos += SystemClock.elapsedRealtimeNanos() - startTime;
+        return snapshot;
+    }
+
     private @NonNull List<ResolveInfo> queryIntentActivitiesInternal(Intent intent,
             String resolvedType, int flags, int userId) {
         return queryIntentActivitiesInternal(
@@ -9119,8 +9186,8 @@ public class PackageManagerService extends IPackageManager.Stub
                 mSeparateProcesses, mOnlyCore, mMetrics, mCacheDir,
                 mParallelPackageParserCallback);
 
-        // Submit files for parsing in parallel
-        int fileCount = 0;
+        // Submit files for parsing in parallel, largest first
+        final List<File> packageFiles = new ArrayList<>(files.length);
         for (File file : files) {
             final boolean isPackage = (isApkFile(file) || file.isDirectory())
                     && !PackageInstallerService.isStageName(file.getName());
@@ -9128,6 +9195,10 @@ public class PackageManagerService extends IPackageManager.Stub
                 // Ignore entries which are not packages
                 continue;
             }
+            packageFiles.add(file);
+        }
+        int fileCount = 0;
+        for (File file : ParallelPackageParser.sortBySizeDescending(packageFiles)) {
             parallelPackageParser.submit(file, parseFlags);
             fileCount++;
         }
@@ -9136,6 +9207,10 @@ public class PackageManagerService extends IPackageManager.Stub
         for (; fileCount > 0; fileCount--) {
             ParallelPackageParser.ParseResult parseResult = parallelPackageParser.take();
             Throwable throwable = parseResult.throwable;
+            if (DEBUG_PACKAGE_SCANNING) {
+                Log.d(TAG, "Parsed " + parseResult.scanFile + " in " + parseResult.parseTimeMs
+                        + "ms");
+            }
             int errorCode = PackageManager.INSTALL_SUCCEEDED;
 
             if (throwable == null) {
@@ -23102,6 +23177,13 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
 
             if (dumpState.isDumping(DumpState.DUMP_PACKAGES)) {
                 mSettings.dumpPackagesLPr(pw, packageName, permissionNames, dumpState, checkin);
+                if (!checkin && packageName == null) {
+                    if (dumpState.onTitlePrinted()) pw.println();
+                    pw.println("Instant app uid snapshot:");
+                    pw.print("  rebuilds="); pw.print(mInstantAppUidSnapshotRebuilds);
+                    pw.print(" totalRebuildTime=");
+                    pw.print(mInstantAppUidSnapshotRebuildNanos / 1000); pw.println("us");
+                }
             }
 
             if (dumpState.isDumping(DumpState.DUMP_SHARED_USERS)) {
@@ -269,6 +269,7 @@ abstract class PackageSettingBase extends SettingBase {
         for (int i=0; i<orig.userState.size(); i++) {
             userState.put(orig.userState.keyAt(i), orig.userState.valueAt(i));
         }
+        Settings.sUidStateGeneration.incrementAndGet();
         verificationInfo = orig.verificationInfo;
         versionCode = orig.versionCode;
         volumeUuid = orig.volumeUuid;
@@ -418,6 +419,7 @@ abstract class PackageSettingBase extends SettingBase {
 
     void setInstantApp(boolean instantApp, int userId) {
         modifyUserState(userId).instantApp = instantApp;
+        Settings.sUidStateGeneration.incrementAndGet();
     }
 
     boolean getVirtulalPreload(int userId) {
@@ -449,6 +451,7 @@ abstract class PackageSettingBase extends SettingBase {
         state.installReason = installReason;
         state.instantApp = instantApp;
         state.virtualPreload = virtualPreload;
+        Settings.sUidStateGeneration.incrementAndGet();
     }
 
     ArraySet<String> getEnabledComponents(int userId) {
@@ -535,6 +538,7 @@ abstract class PackageSettingBase extends SettingBase {
 
     void removeUser(int userId) {
         userState.delete(userId);
+        Settings.sUidStateGeneration.incrementAndGet();
     }
 
     public int[] getNotInstalledUserIds() {
@@ -18,29 +18,50 @@ package com.android.server.pm;
 
 import android.content.pm.PackageParser;
 import android.os.Process;
+import android.os.SystemClock;
 import android.os.Trace;
 import android.util.DisplayMetrics;
+import android.util.Slog;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ConcurrentUtils;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import static android.os.Trace.TRACE_TAG_PACKAGE_MANAGER;
 
 /**
  * Helper class for parallel parsing of packages using {@link PackageParser}.
- * <p>Parsing requests are processed by a thread-pool of {@link #MAX_THREADS}.
- * At any time, at most {@link #QUEUE_CAPACITY} results are kept in RAM</p>
+ * <p>Parsing requests are processed by a thread-pool sized to the number of available cores,
+ * capped at {@link #MAX_THREADS}. Parsed results waiting to be taken are bounded by their
+ * estimated size in RAM ({@link #MAX_PENDING_BYTES}) rather than by their count, so a few large
+ * packages cannot pile up behind a slow consumer while many small ones still flow freely.</p>
  */
 class ParallelPackageParser implements AutoCloseable {
+    private static final String TAG = "ParallelPackageParser";
 
-    private static final int QUEUE_CAPACITY = 10;
-    private static final int MAX_THREADS = 4;
+    private static final int MAX_THREADS = 8;
+
+    /**
+     * Upper bound on the estimated size of parsed packages that have not been taken yet.
+     * A single result is always admitted, even if it alone exceeds this bound.
+     */
+    @VisibleForTesting
+    static final long MAX_PENDING_BYTES = 4 * 1024 * 1024;
+
+    /** Estimated in-memory size bounds of a single parsed package. */
+    private static final long MIN_RESULT_BYTES = 64 * 1024;
+    private static final long MAX_RESULT_BYTES = 1024 * 1024;
+
+    /** Parses slower than this are counted, and summarized in one line on {@link #close}. */
+    private static final long SLOW_PARSE_THRESHOLD_MS = 100;
 
     private final String[] mSeparateProcesses;
     private final boolean mOnlyCore;
@@ -49,10 +70,22 @@ class ParallelPackageParser implements AutoCloseable {
     private final PackageParser.Callback mPackageParserCallback;
     private volatile String mInterruptedInThread;
 
-    private final BlockingQueue<ParseResult> mQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final BlockingQueue<ParseResult> mQueue = new LinkedBlockingQueue<>();
 
-    private final ExecutorService mService = ConcurrentUtils.newFixedThreadPool(MAX_THREADS,
-            "package-parsing-thread", Process.THREAD_PRIORITY_FOREGROUND);
+    private final Object mBudgetLock = new Object();
+    @GuardedBy("mBudgetLock")
+    private long mPendingBytes;
+
+    private final Object mSlowParseLock = new Object();
+    @GuardedBy("mSlowParseLock")
+    private int mSlowParseCount;
+    @GuardedBy("mSlowParseLock")
+    private long mSlowestParseMs;
+    @GuardedBy("mSlowParseLock")
+    private File mSlowestParseFile;
+
+    private final ExecutorService mService = ConcurrentUtils.newFixedThreadPool(
+            getThreadCount(), "package-parsing-thread", Process.THREAD_PRIORITY_FOREGROUND);
 
     ParallelPackageParser(String[] separateProcesses, boolean onlyCoreApps,
             DisplayMetrics metrics, File cacheDir, PackageParser.Callback callback) {
@@ -68,6 +101,8 @@ class ParallelPackageParser implements AutoCloseable {
         PackageParser.Package pkg; // Parsed package
         File scanFile; // File that was parsed
         Throwable throwable; // Set if an error occurs during parsing
+        long parseTimeMs; // Wall time spent parsing scanFile
+        long estimatedBytes; // Estimated RAM held by this result until it is taken
 
         @Override
         public String toString() {
@@ -75,10 +110,84 @@ class ParallelPackageParser implements AutoCloseable {
                     "pkg=" + pkg +
                     ", scanFile=" + scanFile +
                     ", throwable=" + throwable +
+                    ", parseTimeMs=" + parseTimeMs +
                     '}';
         }
     }
 
+    private static int getThreadCount() {
+        return Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), MAX_THREADS));
+    }
+
+    /**
+     * Returns the on-disk size of a package, summing the APKs of a cluster package.
+     */
+    @VisibleForTesting
+    static long getPackageSize(File file) {
+        if (!file.isDirectory()) {
+            return file.length();
+        }
+        long size = 0;
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                if (child.isFile()) {
+                    size += child.length();
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Orders {@code files} so that the largest packages are parsed first. Large packages
+     * dominate the critical path of a scan; starting them early keeps all parsing threads
+     * busy until the end instead of leaving one straggler working alone.
+     */
+    static List<File> sortBySizeDescending(List<File> files) {
+        final int count = files.size();
+        final long[] sizes = new long[count];
+        final Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            sizes[i] = getPackageSize(files.get(i));
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(sizes[b], sizes[a]));
+        final List<File> sorted = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            sorted.add(files.get(order[i]));
+        }
+        return sorted;
+    }
+
+    @VisibleForTesting
+    static long estimateResultBytes(File scanFile) {
+        return Math.max(MIN_RESULT_BYTES, Math.min(getPackageSize(scanFile), MAX_RESULT_BYTES));
+    }
+
+    private void acquireBudget(long bytes) throws InterruptedException {
+        synchronized (mBudgetLock) {
+            while (mPendingBytes > 0 && mPendingBytes + bytes > MAX_PENDING_BYTES) {
+                mBudgetLock.wait();
+            }
+            mPendingBytes += bytes;
+        }
+    }
+
+    private void releaseBudget(long bytes) {
+        synchronized (mBudgetLock) {
+            mPendingBytes -= bytes;
+            mBudgetLock.notifyAll();
+        }
+    }
+
+    @VisibleForTesting
+    long getPendingBytes() {
+        synchronized (mBudgetLock) {
+            return mPendingBytes;
+        }
+    }
+
     /**
      * Take the parsed package from the parsing queue, waiting if necessary until the element
      * appears in the queue.
@@ -89,7 +198,9 @@ class ParallelPackageParser implements AutoCloseable {
             if (mInterruptedInThread != null) {
                 throw new InterruptedException("Interrupted in " + mInterruptedInThread);
             }
-            return mQueue.take();
+            final ParseResult result = mQueue.take();
+            releaseBudget(result.estimatedBytes);
+            return result;
         } catch (InterruptedException e) {
             // We cannot recover from interrupt here
             Thread.currentThread().interrupt();
@@ -106,6 +217,7 @@ class ParallelPackageParser implements AutoCloseable {
         mService.submit(() -> {
             ParseResult pr = new ParseResult();
             Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "parallel parsePackage [" + scanFile + "]");
+            final long startTime = SystemClock.uptimeMillis();
             try {
                 PackageParser pp = new PackageParser();
                 pp.setSeparateProcesses(mSeparateProcesses);
@@ -120,7 +232,13 @@ class ParallelPackageParser implements AutoCloseable {
             } finally {
                 Trace.traceEnd(TRACE_TAG_PACKAGE_MANAGER);
             }
+            pr.parseTimeMs = SystemClock.uptimeMillis() - startTime;
+            if (pr.parseTimeMs > SLOW_PARSE_THRESHOLD_MS) {
+                noteSlowParse(scanFile, pr.parseTimeMs);
+            }
+            pr.estimatedBytes = estimateResultBytes(scanFile);
             try {
+                acquireBudget(pr.estimatedBytes);
                 mQueue.put(pr);
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
@@ -138,8 +256,25 @@ class ParallelPackageParser implements AutoCloseable {
         return packageParser.parsePackage(scanFile, parseFlags, true /* useCaches */);
     }
 
+    private void noteSlowParse(File scanFile, long parseTimeMs) {
+        synchronized (mSlowParseLock) {
+            mSlowParseCount++;
+            if (parseTimeMs > mSlowestParseMs) {
+                mSlowestParseMs = parseTimeMs;
+                mSlowestParseFile = scanFile;
+            }
+        }
+    }
+
     @Override
     public void close() {
+        synchronized (mSlowParseLock) {
+            if (mSlowParseCount > 0) {
+                Slog.i(TAG, mSlowParseCount + " packages took over " + SLOW_PARSE_THRESHOLD_MS
+                        + "ms to parse, slowest was " + mSlowestParseFile + " at "
+                        + mSlowestParseMs + "ms");
+            }
+        }
         List<Runnable> unfinishedTasks = mService.shutdownNow();
         if (!unfinishedTasks.isEmpty()) {
             throw new IllegalStateException("Not all tasks finished before calling close: "
@@ -83,6 +83,7 @@ import android.util.proto.ProtoOutputStream;
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.os.BackgroundThread;
 import com.android.internal.util.ArrayUtils;
+import com.android.internal.util.DigestUtils;
 import com.android.internal.util.FastXmlSerializer;
 import com.android.internal.util.IndentingPrintWriter;
 import com.android.internal.util.JournaledFile;
@@ -100,14 +101,13 @@ import org.xmlpull.v1.XmlSerializer;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
@@ -123,6 +123,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Holds information about dynamic settings.
@@ -130,6 +131,13 @@ import java.util.Set;
 final class Settings {
     private static final String TAG = "PackageSettings";
 
+    /**
+     * Incremented whenever the owner of an app id or the per-user instant app state of a
+     * package changes. Snapshots derived from that state that are read without holding the
+     * package lock are stale once this has moved past the value they were built at.
+     */
+    static final AtomicInteger sUidStateGeneration = new AtomicInteger();
+
     /**
      * Current version of the package database. Set it to the latest version in
      * the {@link DatabaseVersion} class below to ensure the database upgrade
@@ -257,7 +265,16 @@ final class Settings {
 
     private final File mSettingsFilename;
     private final File mBackupSettingsFilename;
+
+    /**
+     * Digest and size of the last packages.xml contents successfully written to disk, used to
+     * skip rewriting the file when nothing in it changed.
+     */
+    private byte[] mLastSettingsDigest;
+    private int mLastSettingsSize = 64 * 1024;
     private final File mPackageListFilename;
+    /** Digest of the last packages.list contents successfully written to disk. */
+    private byte[] mLastPackageListDigest;
     private final File mStoppedPackagesFilename;
     private final File mBackupStoppedPackagesFilename;
     /** The top level directory in configfs for sdcardfs to push the package->uid,userId mappings */
@@ -1211,6 +1228,7 @@ final class Settings {
             }
             mOtherUserIds.put(uid, obj);
         }
+        sUidStateGeneration.incrementAndGet();
         return true;
     }
 
@@ -1232,6 +1250,7 @@ final class Settings {
         } else {
             mOtherUserIds.remove(uid);
         }
+        sUidStateGeneration.incrementAndGet();
         setFirstAvailableUid(uid+1);
     }
 
@@ -1243,6 +1262,7 @@ final class Settings {
         } else {
             mOtherUserIds.put(uid, obj);
         }
+        sUidStateGeneration.incrementAndGet();
     }
 
     PreferredIntentResolver editPreferredActivitiesLPw(int userId) {
@@ -2452,31 +2472,14 @@ final class Settings {
     void writeLPr() {
         //Debug.startMethodTracing("/data/system/packageprof", 8 * 1024 * 1024);
 
-        // Keep the old settings around until we know the new ones have
-        // been successfully written.
-        if (mSettingsFilename.exists()) {
-            // Presence of backup settings file indicates that we failed
-            // to persist settings earlier. So preserve the older
-            // backup for future reference since the current settings
-            // might have been corrupted.
-            if (!mBackupSettingsFilename.exists()) {
-                if (!mSettingsFilename.renameTo(mBackupSettingsFilename)) {
-                    Slog.wtf(PackageManagerService.TAG,
-                            "Unable to backup package manager settings, "
-                            + " current changes will be lost at reboot");
-                    return;
-                }
-            } else {
-                mSettingsFilename.delete();
-                Slog.w(PackageManagerService.TAG, "Preserving older settings backup");
-            }
-        }
-
         mPastSignatures.clear();
 
+        // Whether packages.xml has been opened for writing and may now be partially written.
+        boolean writeStarted = false;
         try {
-            FileOutputStream fstr = new FileOutputStream(mSettingsFilename);
-            BufferedOutputStream str = new BufferedOutputStream(fstr);
+            // Serialize into memory first so that an unchanged settings file does not have to
+            // be rewritten and synced to disk.
+            final ByteArrayOutputStream str = new ByteArrayOutputStream(mLastSettingsSize);
 
             //XmlSerializer serializer = XmlUtils.serializerInstance();
             XmlSerializer serializer = new FastXmlSerializer();
@@ -2585,17 +2588,48 @@ final class Settings {
 
             serializer.endDocument();
 
-            str.flush();
-            FileUtils.sync(fstr);
-            str.close();
+            final byte[] settings = str.toByteArray();
+            final byte[] digest = DigestUtils.computeDigest(settings);
+            final boolean unchanged = DigestUtils.isUnchanged(digest, mLastSettingsDigest,
+                    mSettingsFilename) && !mBackupSettingsFilename.exists();
+            if (!unchanged) {
+                mLastSettingsDigest = null;
+                // Keep the old settings around until we know the new ones have
+                // been successfully written.
+                if (mSettingsFilename.exists()) {
+                    // Presence of backup settings file indicates that we failed
+                    // to persist settings earlier. So preserve the older
+                    // backup for future reference since the current settings
+                    // might have been corrupted.
+                    if (!mBackupSettingsFilename.exists()) {
+                        if (!mSettingsFilename.renameTo(mBackupSettingsFilename)) {
+                            Slog.wtf(PackageManagerService.TAG,
+                                    "Unable to backup package manager settings, "
+                                    + " current changes will be lost at reboot");
+                            return;
+                        }
+                    } else {
+                        mSettingsFilename.delete();
+                        Slog.w(PackageManagerService.TAG, "Preserving older settings backup");
+                    }
+                }
 
-            // New settings successfully written, old ones are no longer
-            // needed.
-            mBackupSettingsFilename.delete();
-            FileUtils.setPermissions(mSettingsFilename.toString(),
-                    FileUtils.S_IRUSR|FileUtils.S_IWUSR
-                    |FileUtils.S_IRGRP|FileUtils.S_IWGRP,
-                    -1, -1);
+                writeStarted = true;
+                final FileOutputStream fstr = new FileOutputStream(mSettingsFilename);
+                fstr.write(settings);
+                FileUtils.sync(fstr);
+                fstr.close();
+
+                // New settings successfully written, old ones are no longer
+                // needed.
+                mBackupSettingsFilename.delete();
+                FileUtils.setPermissions(mSettingsFilename.toString(),
+                        FileUtils.S_IRUSR|FileUtils.S_IWUSR
+                        |FileUtils.S_IRGRP|FileUtils.S_IWGRP,
+                        -1, -1);
+                mLastSettingsDigest = digest;
+                mLastSettingsSize = settings.length;
+            }
 
             writeKernelMappingLPr();
             writePackageListLPr();
@@ -2611,7 +2645,7 @@ final class Settings {
                     + "current changes will be lost at reboot", e);
         }
         // Clean up partially written files
-        if (mSettingsFilename.exists()) {
+        if (writeStarted && mSettingsFilename.exists()) {
             if (!mSettingsFilename.delete()) {
                 Slog.wtf(PackageManagerService.TAG, "Failed to clean up mangled file: "
                         + mSettingsFilename);
@@ -2730,81 +2764,89 @@ final class Settings {
             userIds = ArrayUtils.appendInt(userIds, creatingUserId);
         }
 
-        // Write package list file now, use a JournaledFile.
+        // Build the package list in memory and only write it out, using a JournaledFile,
+        // when it differs from what was last written.
+        final StringBuilder contents = new StringBuilder();
+        StringBuilder sb = new StringBuilder();
+        for (final PackageSetting pkg : mPackages.values()) {
+            if (pkg.pkg == null || pkg.pkg.applicationInfo == null
+                    || pkg.pkg.applicationInfo.dataDir == null) {
+                if (!"android".equals(pkg.name)) {
+                    Slog.w(TAG, "Skipping " + pkg + " due to missing metadata");
+                }
+                continue;
+            }
+
+            final ApplicationInfo ai = pkg.pkg.applicationInfo;
+            final String dataPath = ai.dataDir;
+            final boolean isDebug = (ai.flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+            final int[] gids = pkg.getPermissionsState().computeGids(userIds);
+
+            // Avoid any application that has a space in its path.
+            if (dataPath.indexOf(' ') >= 0)
+                continue;
+
+            // we store on each line the following information for now:
+            //
+            // pkgName    - package name
+            // userId     - application-specific user id
+            // debugFlag  - 0 or 1 if the package is debuggable.
+            // dataPath   - path to package's data path
+            // seinfo     - seinfo label for the app (assigned at install time)
+            // gids       - supplementary gids this app launches with
+            //
+            // NOTE: We prefer not to expose all ApplicationInfo flags for now.
+            //
+            // DO NOT MODIFY THIS FORMAT UNLESS YOU CAN ALSO MODIFY ITS USERS
+            // FROM NATIVE CODE. AT THE MOMENT, LOOK AT THE FOLLOWING SOURCES:
+            //   frameworks/base/libs/packagelistparser
+            //   system/core/run-as/run-as.c
+            //
+            sb.setLength(0);
+            sb.append(ai.packageName);
+            sb.append(" ");
+            sb.append(ai.uid);
+            sb.append(isDebug ? " 1 " : " 0 ");
+            sb.append(dataPath);
+            sb.append(" ");
+            sb.append(ai.seInfo);
+            sb.append(" ");
+            if (gids != null && gids.length > 0) {
+                sb.append(gids[0]);
+                for (int i = 1; i < gids.length; i++) {
+                    sb.append(",");
+                    sb.append(gids[i]);
+                }
+            } else {
+                sb.append("none");
+            }
+            sb.append("\n");
+            contents.append(sb);
+        }
+
+        final byte[] bytes = contents.toString().getBytes(Charset.defaultCharset());
+        final byte[] digest = DigestUtils.computeDigest(bytes);
+        if (DigestUtils.isUnchanged(digest, mLastPackageListDigest, mPackageListFilename)) {
+            return;
+        }
+        mLastPackageListDigest = null;
+
         File tempFile = new File(mPackageListFilename.getAbsolutePath() + ".tmp");
         JournaledFile journal = new JournaledFile(mPackageListFilename, tempFile);
 
         final File writeTarget = journal.chooseForWrite();
-        FileOutputStream fstr;
-        BufferedWriter writer = null;
+        FileOutputStream fstr = null;
         try {
             fstr = new FileOutputStream(writeTarget);
-            writer = new BufferedWriter(new OutputStreamWriter(fstr, Charset.defaultCharset()));
             FileUtils.setPermissions(fstr.getFD(), 0640, SYSTEM_UID, PACKAGE_INFO_GID);
-
-            StringBuilder sb = new StringBuilder();
-            for (final PackageSetting pkg : mPackages.values()) {
-                if (pkg.pkg == null || pkg.pkg.applicationInfo == null
-                        || pkg.pkg.applicationInfo.dataDir == null) {
-                    if (!"android".equals(pkg.name)) {
-                        Slog.w(TAG, "Skipping " + pkg + " due to missing metadata");
-                    }
-                    continue;
-                }
-
-                final ApplicationInfo ai = pkg.pkg.applicationInfo;
-                final String dataPath = ai.dataDir;
-                final boolean isDebug = (ai.flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
-                final int[] gids = pkg.getPermissionsState().computeGids(userIds);
-
-                // Avoid any application that has a space in its path.
-                if (dataPath.indexOf(' ') >= 0)
-                    continue;
-
-                // we store on each line the following information for now:
-                //
-                // pkgName    - package name
-                // userId     - application-specific user id
-                // debugFlag  - 0 or 1 if the package is debuggable.
-                // dataPath   - path to package's data path
-                // seinfo     - seinfo label for the app (assigned at install time)
-                // gids       - supplementary gids this app launches with
-                //
-                // NOTE: We prefer not to expose all ApplicationInfo flags for now.
-                //
-                // DO NOT MODIFY THIS FORMAT UNLESS YOU CAN ALSO MODIFY ITS USERS
-                // FROM NATIVE CODE. AT THE MOMENT, LOOK AT THE FOLLOWING SOURCES:
-                //   frameworks/base/libs/packagelistparser
-                //   system/core/run-as/run-as.c
-                //
-                sb.setLength(0);
-                sb.append(ai.packageName);
-                sb.append(" ");
-                sb.append(ai.uid);
-                sb.append(isDebug ? " 1 " : " 0 ");
-                sb.append(dataPath);
-                sb.append(" ");
-                sb.append(ai.seInfo);
-                sb.append(" ");
-                if (gids != null && gids.length > 0) {
-                    sb.append(gids[0]);
-                    for (int i = 1; i < gids.length; i++) {
-                        sb.append(",");
-                        sb.append(gids[i]);
-                    }
-                } else {
-                    sb.append("none");
-                }
-                sb.append("\n");
-                writer.append(sb);
-            }
-            writer.flush();
+            fstr.write(bytes);
             FileUtils.sync(fstr);
-            writer.close();
+            fstr.close();
             journal.commit();
+            mLastPackageListDigest = digest;
         } catch (Exception e) {
             Slog.wtf(TAG, "Failed to write packages.list", e);
-            IoUtils.closeQuietly(writer);
+            IoUtils.closeQuietly(fstr);
             journal.rollback();
         }
     }
@@ -4333,6 +4375,7 @@ final class Settings {
         for (int i = mFirstAvailableUid; i < N; i++) {
             if (mUserIds.get(i) == null) {
                 mUserIds.set(i, obj);
+                sUidStateGeneration.incrementAndGet();
                 return Process.FIRST_APPLICATION_UID + i;
             }
         }
@@ -4343,6 +4386,7 @@ final class Settings {
         }
 
         mUserIds.add(obj);
+        sUidStateGeneration.incrementAndGet();
         return Process.FIRST_APPLICATION_UID + N;
     }
 
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import static android.app.AlarmManager.ELAPSED_REALTIME;
+import static android.app.AlarmManager.ELAPSED_REALTIME_WAKEUP;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.app.AlarmManager;
+import android.app.IAlarmCompleteListener;
+import android.app.IAlarmListener;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests that the partial rebatching in {@link AlarmManagerService} leaves the batches it does
+ * not need to touch, and the delivery times of their alarms, as they were, and checks the
+ * order in which due alarms are dispatched.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class AlarmManagerServiceTest {
+    private static final long MINUTE = 60 * 1000;
+    private static final long HOUR = 60 * MINUTE;
+
+    private AlarmManagerService mService;
+    private long mBase;
+
+    @Before
+    public void setUp() {
+        // The service's handler needs a looper. Nothing loops it, so the kernel alarm
+        // fallback messages posted while scheduling are never delivered.
+        if (Looper.myLooper() == null) {
+            Looper.prepare();
+        }
+        mService = new AlarmManagerService(InstrumentationRegistry.getContext());
+        mBase = SystemClock.elapsedRealtime() + HOUR;
+    }
+
+    private static AlarmManagerService.Alarm newAlarm(String packageName, int uid, int type,
+            long when, long window, int flags) {
+        final IAlarmListener listener = new IAlarmListener.Stub() {
+            @Override
+            public void doAlarm(IAlarmCompleteListener callback) {
+            }
+        };
+        return new AlarmManagerService.Alarm(type, when, when, window,
+                when + window, 0, null, listener, packageName, null, flags, null, uid,
+                packageName);
+    }
+
+    private AlarmManagerService.Alarm setAlarm(String packageName, long when, long window,
+            int flags) {
+        final AlarmManagerService.Alarm alarm = newAlarm(packageName, Process.myUid(),
+                ELAPSED_REALTIME_WAKEUP, when, window, flags);
+        synchronized (mService.mLock) {
+            mService.setImplLocked(alarm, false, true);
+        }
+        return alarm;
+    }
+
+    /** Describes the given alarms together with their delivery windows. */
+    private List<String> snapshot(AlarmManagerService.Alarm... alarms) {
+        final List<String> result = new ArrayList<>();
+        for (AlarmManagerService.Alarm alarm : alarms) {
+            result.add(alarm + " " + alarm.whenElapsed + "-" + alarm.maxWhenElapsed);
+        }
+        return result;
+    }
+
+    /** Returns the alarms of every batch in delivery order, checking the batch order. */
+    private List<AlarmManagerService.Alarm> batchedAlarms() {
+        final List<AlarmManagerService.Alarm> result = new ArrayList<>();
+        long lastStart = Long.MIN_VALUE;
+        for (AlarmManagerService.Batch batch : mService.mAlarmBatches) {
+            assertTrue("Batches out of order", batch.start >= lastStart);
+            lastStart = batch.start;
+            for (int i = 0; i < batch.size(); i++) {
+                result.add(batch.get(i));
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void testRemovePackage_keepsOtherBatches() {
+        final AlarmManagerService.Alarm a1 = setAlarm("a", mBase, 10 * MINUTE, 0);
+        setAlarm("b", mBase + 5 * MINUTE, 10 * MINUTE, 0);
+        final AlarmManagerService.Alarm a2 = setAlarm("a", mBase + 30 * MINUTE,
+                AlarmManager.WINDOW_EXACT, 0);
+        setAlarm("b", mBase + 60 * MINUTE, 5 * MINUTE, 0);
+        final AlarmManagerService.Alarm a3 = setAlarm("a", mBase + 62 * MINUTE,
+                5 * MINUTE, 0);
+        assertEquals(3, mService.mAlarmBatches.size());
+
+        final AlarmManagerService.Batch untouched = mService.mAlarmBatches.get(1);
+        final long untouchedStart = untouched.start;
+        final long untouchedEnd = untouched.end;
+        final List<String> before = snapshot(a1, a2, a3);
+        final int fullRebatches = mService.mNumFullRebatches;
+
+        synchronized (mService.mLock) {
+            mService.removeLocked("b");
+        }
+
+        assertEquals(fullRebatches, mService.mNumFullRebatches);
+        assertEquals(3, mService.mAlarmBatches.size());
+        assertSame(untouched, mService.mAlarmBatches.get(1));
+        assertEquals(untouchedStart, untouched.start);
+        assertEquals(untouchedEnd, untouched.end);
+
+        final List<AlarmManagerService.Alarm> after = batchedAlarms();
+        assertEquals(3, after.size());
+        assertSame(a1, after.get(0));
+        assertSame(a2, after.get(1));
+        assertSame(a3, after.get(2));
+        assertEquals(before, snapshot(a1, a2, a3));
+    }
+
+    @Test
+    public void testSetIdleUntil_defersOnlyAlarmsNotAllowedWhileIdle() {
+        final AlarmManagerService.Alarm allowed1 = setAlarm("a", mBase, 10 * MINUTE,
+                AlarmManager.FLAG_ALLOW_WHILE_IDLE);
+        final AlarmManagerService.Alarm deferred = setAlarm("b", mBase + 5 * MINUTE,
+                10 * MINUTE, 0);
+        final AlarmManagerService.Alarm allowed2 = setAlarm("a", mBase + 30 * MINUTE,
+                AlarmManager.WINDOW_EXACT, AlarmManager.FLAG_ALLOW_WHILE_IDLE);
+        assertEquals(2, mService.mAlarmBatches.size());
+
+        final AlarmManagerService.Batch untouched = mService.mAlarmBatches.get(1);
+        final List<String> before = snapshot(allowed1, allowed2);
+        final int fullRebatches = mService.mNumFullRebatches;
+
+        final AlarmManagerService.Alarm idleUntil = setAlarm("android", mBase + 2 * HOUR,
+                AlarmManager.WINDOW_EXACT, AlarmManager.FLAG_IDLE_UNTIL);
+
+        assertSame(idleUntil, mService.mPendingIdleUntil);
+        assertEquals(fullRebatches, mService.mNumFullRebatches);
+        assertEquals(1, mService.mPendingWhileIdleAlarms.size());
+        assertSame(deferred, mService.mPendingWhileIdleAlarms.get(0));
+        assertSame(untouched, mService.mAlarmBatches.get(1));
+
+        final List<AlarmManagerService.Alarm> after = batchedAlarms();
+        assertEquals(3, after.size());
+        assertSame(allowed1, after.get(0));
+        assertSame(allowed2, after.get(1));
+        assertSame(idleUntil, after.get(2));
+        assertEquals(before, snapshot(allowed1, allowed2));
+    }
+
+    @Test
+    public void testEarlierWakeFromIdle_movesOnlyIdleUntil() {
+        final AlarmManagerService.Alarm allowed = setAlarm("a", mBase + 30 * MINUTE,
+                AlarmManager.WINDOW_EXACT, AlarmManager.FLAG_ALLOW_WHILE_IDLE);
+        final AlarmManagerService.Alarm idleUntil = setAlarm("android", mBase + 2 * HOUR,
+                AlarmManager.WINDOW_EXACT, AlarmManager.FLAG_IDLE_UNTIL);
+        final AlarmManagerService.Batch untouched = mService.mAlarmBatches.get(0);
+        final List<String> before = snapshot(allowed);
+        final int fullRebatches = mService.mNumFullRebatches;
+
+        final AlarmManagerService.Alarm wake = setAlarm("android", mBase + HOUR,
+                AlarmManager.WINDOW_EXACT, AlarmManager.FLAG_WAKE_FROM_IDLE);
+
+        assertEquals(fullRebatches, mService.mNumFullRebatches);
+        assertTrue("Idle until " + idleUntil.whenElapsed + " is after wake from idle "
+                + wake.whenElapsed, idleUntil.whenElapsed <= wake.whenElapsed);
+        assertSame(untouched, mService.mAlarmBatches.get(0));
+
+        final List<AlarmManagerService.Alarm> after = batchedAlarms();
+        assertEquals(3, after.size());
+        assertSame(allowed, after.get(0));
+        assertSame(idleUntil, after.get(1));
+        assertSame(wake, after.get(2));
+        assertEquals(before, snapshot(allowed));
+    }
+
+    private AlarmManagerService.Alarm newDispatchAlarm(int uid, long when, int type) {
+        return newAlarm("uid" + uid, uid, type, when, AlarmManager.WINDOW_EXACT, 0);
+    }
+
+    @Test
+    public void testDispatchOrder_groupsUidsWithinPriorityClass() {
+        final AlarmManagerService.Alarm x1 = newDispatchAlarm(10001, mBase + 20, ELAPSED_REALTIME);
+        final AlarmManagerService.Alarm y1 = newDispatchAlarm(10002, mBase + 5, ELAPSED_REALTIME);
+        final AlarmManagerService.Alarm x2 = newDispatchAlarm(10001, mBase + 30, ELAPSED_REALTIME);
+        final AlarmManagerService.Alarm w = newDispatchAlarm(10003, mBase + 40,
+                ELAPSED_REALTIME_WAKEUP);
+        final AlarmManagerService.Alarm y2 = newDispatchAlarm(10002, mBase + 25, ELAPSED_REALTIME);
+        final AlarmManagerService.Alarm x3 = newDispatchAlarm(10001, mBase + 20, ELAPSED_REALTIME);
+        final AlarmManagerService.Alarm z = newDispatchAlarm(10000, mBase + 5, ELAPSED_REALTIME);
+
+        final ArrayList<AlarmManagerService.Alarm> triggerList = new ArrayList<>();
+        Collections.addAll(triggerList, x1, y1, x2, w, y2, x3, z);
+        synchronized (mService.mLock) {
+            mService.calculateDeliveryPriorities(triggerList);
+        }
+        Collections.sort(triggerList, mService.mAlarmDispatchComparator);
+
+        // Priority class first. Within it, each uid's alarms go out together, at the position
+        // of its earliest alarm; the uid only breaks ties. Equal times keep their order.
+        assertEquals(Arrays.asList(w, z, y1, y2, x1, x3, x2), triggerList);
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import static android.app.AppOpsManager.MODE_ALLOWED;
+import static android.app.AppOpsManager.MODE_ERRORED;
+import static android.app.AppOpsManager.MODE_IGNORED;
+import static android.app.AppOpsManager.OP_READ_SMS;
+
+import static org.junit.Assert.assertEquals;
+
+import android.content.Context;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests for {@link AppOpsService}, including checks that the cached
+ * {@link AppOpsService#checkOperation} path stays consistent under concurrent callers.
+ */
+@RunWith(AndroidJUnit4.class)
+public class AppOpsServiceTest {
+    private static final String TAG = AppOpsServiceTest.class.getSimpleName();
+
+    private static final int THREAD_COUNT = 4;
+    private static final long MEASURE_DURATION_MS = 1000;
+    private static final int ROUND_COUNT = 200;
+    private static final int CALLS_PER_ROUND = 50;
+    private static final long BARRIER_TIMEOUT_SEC = 10;
+
+    private File mAppOpsFile;
+    private HandlerThread mHandlerThread;
+    private AppOpsService mAppOpsService;
+    private String mMyPackageName;
+    private int mMyUid;
+
+    @Before
+    public void setUp() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        mAppOpsFile = new File(context.getFilesDir(), "appops.xml");
+        mAppOpsFile.delete();
+        mHandlerThread = new HandlerThread(TAG);
+        mHandlerThread.start();
+        mAppOpsService = new AppOpsService(mAppOpsFile, new Handler(mHandlerThread.getLooper()));
+        mMyPackageName = context.getOpPackageName();
+        mMyUid = Process.myUid();
+    }
+
+    @After
+    public void tearDown() {
+        mHandlerThread.quit();
+        mAppOpsFile.delete();
+    }
+
+    @Test
+    public void testCheckOperation_seesModeChanges() {
+        assertEquals(MODE_ALLOWED,
+                mAppOpsService.checkOperation(OP_READ_SMS, mMyUid, mMyPackageName));
+
+        mAppOpsService.setMode(OP_READ_SMS, mMyUid, mMyPackageName, MODE_ERRORED);
+        assertEquals(MODE_ERRORED,
+                mAppOpsService.checkOperation(OP_READ_SMS, mMyUid, mMyPackageName));
+
+        // A uid mode overrides the package mode.
+        mAppOpsService.setUidMode(OP_READ_SMS, mMyUid, MODE_IGNORED);
+        assertEquals(MODE_IGNORED,
+                mAppOpsService.checkOperation(OP_READ_SMS, mMyUid, mMyPackageName));
+
+        mAppOpsService.setUidMode(OP_READ_SMS, mMyUid, MODE_ALLOWED);
+        assertEquals(MODE_ERRORED,
+                mAppOpsService.checkOperation(OP_READ_SMS, mMyUid, mMyPackageName));
+
+        mAppOpsService.uidRemoved(mMyUid);
+        assertEquals(MODE_ALLOWED,
+                mAppOpsService.checkOperation(OP_READ_SMS, mMyUid, mMyPackageName));
+    }
+
+    @Test
+    public void testCheckOperation_seesUserRestrictions() {
+        final Binder token = new Binder();
+        final int userId = UserHandle.getUserId(mMyUid);
+        assertEquals(MODE_ALLOWED,
+                mAppOpsService.checkOperation(OP_READ_SMS, mMyUid, mMyPackageName));
+
+        mAppOpsService.setUserRestriction(OP_READ_SMS, true, token, userId, null);
+        assertEquals(MODE_IGNORED,
+                mAppOpsService.checkOperation(OP_READ_SMS, mMyUid, mMyPackageName));
+
+        mAppOpsService.setUserRestriction(OP_READ_SMS, false, token, userId, null);
+        assertEquals(MODE_ALLOWED,
+                mAppOpsService.checkOperation(OP_READ_SMS, mMyUid, mMyPackageName));
+
+        // An exempt package is not restricted.
+        mAppOpsService.setUserRestriction(OP_READ_SMS, true, token, userId,
+                new String[] { mMyPackageName });
+        assertEquals(MODE_ALLOWED,
+                mAppOpsService.checkOperation(OP_READ_SMS, mMyUid, mMyPackageName));
+        mAppOpsService.setUserRestriction(OP_READ_SMS, false, token, userId, null);
+    }
+
+    @Test
+    public void testCheckOperation_seesPackageRemoval() {
+        mAppOpsService.setMode(OP_READ_SMS, mMyUid, mMyPackageName, MODE_ERRORED);
+        assertEquals(MODE_ERRORED,
+                mAppOpsService.checkOperation(OP_READ_SMS, mMyUid, mMyPackageName));
+
+        mAppOpsService.packageRemoved(mMyUid, mMyPackageName);
+        assertEquals(MODE_ALLOWED,
+                mAppOpsService.checkOperation(OP_READ_SMS, mMyUid, mMyPackageName));
+    }
+
+    /**
+     * Once setMode returns, every thread must see the new mode on its next checkOperation,
+     * even though each of them has just cached the previous one.
+     */
+    @LargeTest
+    @Test
+    public void testCheckOperation_concurrentReadersSeeWrites() throws Exception {
+        final AtomicInteger expectedMode = new AtomicInteger(MODE_ALLOWED);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final CyclicBarrier barrier = new CyclicBarrier(THREAD_COUNT + 1);
+
+        final Thread[] readers = new Thread[THREAD_COUNT];
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            readers[i] = new Thread(() -> {
+                try {
+                    for (int round = 0; round < ROUND_COUNT; round++) {
+                        barrier.await(BARRIER_TIMEOUT_SEC, TimeUnit.SECONDS);
+                        final int expected = expectedMode.get();
+                        // The first call may miss the cache; the rest are served from it.
+                        for (int call = 0; call < CALLS_PER_ROUND; call++) {
+                            final int mode = mAppOpsService.checkOperation(OP_READ_SMS, mMyUid,
+                                    mMyPackageName);
+                            if (mode != expected) {
+                                throw new AssertionError("Round " + round + " call " + call
+                                        + ": expected mode " + expected + " but got " + mode);
+                            }
+                        }
+                        barrier.await(BARRIER_TIMEOUT_SEC, TimeUnit.SECONDS);
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                    // Release everybody else rather than leaving them waiting for this thread.
+                    barrier.reset();
+                }
+            }, TAG + "-reader-" + i);
+            readers[i].start();
+        }
+
+        try {
+            for (int round = 0; round < ROUND_COUNT && failure.get() == null; round++) {
+                final int mode = (round % 2 == 0) ? MODE_ERRORED : MODE_ALLOWED;
+                mAppOpsService.setMode(OP_READ_SMS, mMyUid, mMyPackageName, mode);
+                expectedMode.set(mode);
+                barrier.await(BARRIER_TIMEOUT_SEC, TimeUnit.SECONDS);
+                barrier.await(BARRIER_TIMEOUT_SEC, TimeUnit.SECONDS);
+            }
+        } catch (BrokenBarrierException | TimeoutException e) {
+            failure.compareAndSet(null, e);
+            barrier.reset();
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertNoFailure(failure);
+    }
+
+    @LargeTest
+    @Test
+    public void testCheckOperation_concurrentThroughput() throws Exception {
+        final long opsPerSec = measureCheckOperationThroughput(false /* withWriter */);
+        Log.i(TAG, "checkOperation: " + THREAD_COUNT + " threads, " + opsPerSec + " ops/sec");
+    }
+
+    @LargeTest
+    @Test
+    public void testCheckOperation_concurrentThroughputWithWriter() throws Exception {
+        final long opsPerSec = measureCheckOperationThroughput(true /* withWriter */);
+        Log.i(TAG, "checkOperation with concurrent setMode: " + THREAD_COUNT + " threads, "
+                + opsPerSec + " ops/sec");
+    }
+
+    private static void assertNoFailure(AtomicReference<Throwable> failure) {
+        final Throwable t = failure.get();
+        if (t != null) {
+            final AssertionError error = new AssertionError("Worker thread failed: " + t);
+            error.initCause(t);
+            throw error;
+        }
+    }
+
+    /**
+     * Runs {@link #THREAD_COUNT} threads calling checkOperation for
+     * {@link #MEASURE_DURATION_MS} and returns the combined number of calls per second.
+     * If {@code withWriter} is set, another thread keeps flipping the mode being checked.
+     * Fails if any reader sees a mode that was never set.
+     */
+    private long measureCheckOperationThroughput(boolean withWriter) throws Exception {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong totalCalls = new AtomicLong();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final CountDownLatch start = new CountDownLatch(1);
+
+        final Thread[] readers = new Thread[THREAD_COUNT];
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            readers[i] = new Thread(() -> {
+                long calls = 0;
+                try {
+                    start.await();
+                    while (running.get()) {
+                        final int mode = mAppOpsService.checkOperation(OP_READ_SMS, mMyUid,
+                                mMyPackageName);
+                        if (mode != MODE_ALLOWED && mode != MODE_ERRORED) {
+                            throw new AssertionError("Unexpected mode " + mode);
+                        }
+                        calls++;
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    totalCalls.addAndGet(calls);
+                }
+            }, TAG + "-reader-" + i);
+            readers[i].start();
+        }
+
+        Thread writer = null;
+        if (withWriter) {
+            writer = new Thread(() -> {
+                try {
+                    boolean errored = false;
+                    while (running.get()) {
+                        errored = !errored;
+                        mAppOpsService.setMode(OP_READ_SMS, mMyUid, mMyPackageName,
+                                errored ? MODE_ERRORED : MODE_ALLOWED);
+                        SystemClock.sleep(1);
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }, TAG + "-writer");
+            writer.start();
+        }
+
+        final long startTime = SystemClock.elapsedRealtime();
+        start.countDown();
+        SystemClock.sleep(MEASURE_DURATION_MS);
+        running.set(false);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        final long elapsed = SystemClock.elapsedRealtime() - startTime;
+        if (writer != null) {
+            writer.join();
+        }
+        assertNoFailure(failure);
+        return totalCalls.get() * 1000 / Math.max(1, elapsed);
+    }
+}
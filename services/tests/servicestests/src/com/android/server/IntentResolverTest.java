@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.UserHandle;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Tests for the category mask checks in {@link IntentResolver}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class IntentResolverTest {
+    private static final String ACTION = "com.android.server.IntentResolverTest.ACTION";
+
+    /** More distinct categories than the resolver has mask bits for. */
+    private static final int NUM_CATEGORIES = 70;
+
+    private static class TestResolver extends IntentResolver<IntentFilter, IntentFilter> {
+        @Override
+        protected boolean isPackageForFilter(String packageName, IntentFilter filter) {
+            return false;
+        }
+
+        @Override
+        protected IntentFilter[] newArray(int size) {
+            return new IntentFilter[size];
+        }
+    }
+
+    private TestResolver mResolver;
+
+    @Before
+    public void setUp() {
+        mResolver = new TestResolver();
+    }
+
+    private static String category(int i) {
+        return "com.android.server.IntentResolverTest.CATEGORY_" + i;
+    }
+
+    private IntentFilter addFilter(String... categories) {
+        final IntentFilter filter = new IntentFilter(ACTION);
+        for (String category : categories) {
+            filter.addCategory(category);
+        }
+        mResolver.addFilter(filter);
+        return filter;
+    }
+
+    private static Intent newIntent(String... categories) {
+        final Intent intent = new Intent(ACTION);
+        for (String category : categories) {
+            intent.addCategory(category);
+        }
+        return intent;
+    }
+
+    private List<IntentFilter> query(Intent intent, boolean defaultOnly) {
+        return mResolver.queryIntent(intent, null, defaultOnly, UserHandle.USER_SYSTEM);
+    }
+
+    /**
+     * Checks that a query returns {@code expected}, and that the debug path, which skips the
+     * mask checks, returns the same filters.
+     */
+    private void assertQuery(Intent intent, boolean defaultOnly, IntentFilter... expected) {
+        final HashSet<IntentFilter> expectedSet = new HashSet<>();
+        for (IntentFilter filter : expected) {
+            expectedSet.add(filter);
+        }
+        assertEquals(expectedSet, new HashSet<>(query(intent, defaultOnly)));
+
+        final Intent debugIntent = new Intent(intent);
+        debugIntent.addFlags(Intent.FLAG_DEBUG_LOG_RESOLUTION);
+        assertEquals(expectedSet, new HashSet<>(query(debugIntent, defaultOnly)));
+    }
+
+    @Test
+    public void testCategoriesBeyondMaskBits() {
+        final List<IntentFilter> filters = new ArrayList<>();
+        for (int i = 0; i < NUM_CATEGORIES; i++) {
+            filters.add(addFilter(category(i)));
+        }
+        final IntentFilter twoOverflow = addFilter(category(64), category(66));
+        final IntentFilter mixed = addFilter(category(3), category(65));
+
+        // A category without a bit of its own must still be matched exactly.
+        assertQuery(newIntent(category(65)), false, filters.get(65), mixed);
+        assertQuery(newIntent(category(64)), false, filters.get(64), twoOverflow);
+        assertQuery(newIntent(category(64), category(66)), false, twoOverflow);
+        assertQuery(newIntent(category(3), category(65)), false, mixed);
+        assertQuery(newIntent(category(3)), false, filters.get(3), mixed);
+
+        // Once bits are exhausted, an undeclared category is left to IntentFilter.match.
+        assertQuery(newIntent("undeclared"), false);
+        assertQuery(newIntent(category(64), "undeclared"), false);
+    }
+
+    @Test
+    public void testUndeclaredCategory() {
+        final IntentFilter plain = addFilter();
+        final IntentFilter withCategory = addFilter(category(0));
+
+        assertQuery(newIntent(), false, plain, withCategory);
+        assertQuery(newIntent(category(0)), false, withCategory);
+        assertQuery(newIntent(category(1)), false);
+        assertQuery(newIntent(category(0), category(1)), false);
+
+        // Declaring the category later makes it resolvable.
+        final IntentFilter declared = addFilter(category(0), category(1));
+        assertQuery(newIntent(category(1)), false, declared);
+        assertQuery(newIntent(category(0), category(1)), false, declared);
+
+        // Bits are not reclaimed, but removing the filter must still remove the match.
+        mResolver.removeFilter(declared);
+        assertQuery(newIntent(category(1)), false);
+        assertQuery(newIntent(category(0)), false, withCategory);
+    }
+
+    @Test
+    public void testDefaultOnly() {
+        final IntentFilter nonDefault = addFilter(category(0));
+        final IntentFilter withDefault = addFilter(Intent.CATEGORY_DEFAULT, category(0));
+        final IntentFilter defaultOnly = addFilter(Intent.CATEGORY_DEFAULT);
+
+        assertQuery(newIntent(), true, withDefault, defaultOnly);
+        assertQuery(newIntent(category(0)), true, withDefault);
+        assertQuery(newIntent(category(0)), false, nonDefault, withDefault);
+        assertTrue(query(newIntent(category(1)), true).isEmpty());
+    }
+
+    @Test
+    public void testQueryFromListWithUnregisteredFilter() {
+        final IntentFilter registered = addFilter(category(0));
+        final IntentFilter unregistered = new IntentFilter(ACTION);
+        unregistered.addCategory(category(1));
+        final ArrayList<IntentFilter[]> listCut = new ArrayList<>();
+        listCut.add(new IntentFilter[] { registered, unregistered });
+
+        // No registered filter declares category(1), but the unregistered one does and
+        // has no mask to be rejected by.
+        final Intent intent = newIntent(category(1));
+        assertEquals(1, mResolver.queryIntentFromList(intent, null, false, listCut,
+                UserHandle.USER_SYSTEM).size());
+        assertTrue(mResolver.queryIntentFromList(intent, null, false, listCut,
+                UserHandle.USER_SYSTEM).contains(unregistered));
+        assertTrue(mResolver.queryIntentFromList(newIntent(category(0)), null, false, listCut,
+                UserHandle.USER_SYSTEM).contains(registered));
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.app.ActivityManager;
+import android.app.IActivityManager;
+import android.app.IUidObserver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.content.pm.PackageManager;
+import android.os.IBinder;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.test.uiautomator.UiDevice;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests that dropping a service binding, which only updates the oom_adj of the processes
+ * depending on the binding, does so without a full update and still reports the new uid
+ * state to uid observers.
+ *
+ * Build: m FrameworksServicesTests
+ * Install: adb install -r \
+ *     ${ANDROID_PRODUCT_OUT}/data/app/FrameworksServicesTests/FrameworksServicesTests.apk
+ * Run: adb shell am instrument -e class com.android.server.am.UnbindUidStateTest -w \
+ *     com.android.frameworks.servicestests/android.support.test.runner.AndroidJUnitRunner
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class UnbindUidStateTest {
+    private static final String TEST_PKG = "com.android.servicestests.apps.conntestapp";
+    private static final String TEST_SERVICE_CLASS = TEST_PKG + ".CmdReceiverService";
+
+    private static final long TIMEOUT_MS = 5000;
+
+    private static final String PARTIAL_COUNT = "mOomAdjPartialCount";
+    private static final String PARTIAL_FALLBACK_COUNT = "mOomAdjPartialFallbackCount";
+
+    private Context mContext;
+    private IActivityManager mAm;
+    private int mTestPkgUid;
+
+    /** Process states reported for {@link #mTestPkgUid}, in the order they were dispatched. */
+    private final LinkedBlockingQueue<Integer> mReportedStates = new LinkedBlockingQueue<>();
+
+    private final IUidObserver mUidObserver = new IUidObserver.Stub() {
+        @Override
+        public void onUidStateChanged(int uid, int procState, long procStateSeq) {
+            if (uid == mTestPkgUid) {
+                mReportedStates.add(procState);
+            }
+        }
+
+        @Override
+        public void onUidGone(int uid, boolean disabled) {
+            if (uid == mTestPkgUid) {
+                mReportedStates.add(ActivityManager.PROCESS_STATE_NONEXISTENT);
+            }
+        }
+
+        @Override
+        public void onUidActive(int uid) {
+        }
+
+        @Override
+        public void onUidIdle(int uid, boolean disabled) {
+        }
+
+        @Override
+        public void onUidCachedChanged(int uid, boolean cached) {
+        }
+    };
+
+    private final ServiceConnection mConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            mConnectedLatch.countDown();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+        }
+    };
+    private final CountDownLatch mConnectedLatch = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = InstrumentationRegistry.getContext();
+        mAm = ActivityManager.getService();
+        mContext.getPackageManager().setApplicationEnabledSetting(TEST_PKG,
+                PackageManager.COMPONENT_ENABLED_STATE_ENABLED, 0);
+        mTestPkgUid = mContext.getPackageManager().getPackageUid(TEST_PKG, 0);
+        mAm.registerUidObserver(mUidObserver,
+                ActivityManager.UID_OBSERVER_PROCSTATE | ActivityManager.UID_OBSERVER_GONE,
+                ActivityManager.PROCESS_STATE_UNKNOWN, mContext.getOpPackageName());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mAm.unregisterUidObserver(mUidObserver);
+        mContext.stopService(newServiceIntent());
+    }
+
+    private static Intent newServiceIntent() {
+        return new Intent().setComponent(new ComponentName(TEST_PKG, TEST_SERVICE_CLASS));
+    }
+
+    @Test
+    public void testUnbind_reportsLowerUidState() throws Exception {
+        assertTrue(mContext.bindService(newServiceIntent(), mConnection,
+                Context.BIND_AUTO_CREATE));
+        if (!mConnectedLatch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+            fail("Timed out waiting for " + TEST_SERVICE_CLASS + " to bind");
+        }
+        final int boundState = waitForReportedState();
+
+        // Keep the service, and so its process, running after the binding is gone, so that
+        // the unbind takes the partial oom_adj path instead of tearing the process down.
+        mContext.startService(newServiceIntent());
+        final long partialBefore = readOomAdjCount(PARTIAL_COUNT);
+        final long fallbackBefore = readOomAdjCount(PARTIAL_FALLBACK_COUNT);
+        mContext.unbindService(mConnection);
+
+        final int unboundState = waitForReportedState();
+        assertTrue("Expected uid state to drop below " + boundState + " but it is "
+                + unboundState, unboundState > boundState);
+
+        // Other processes may update their oom_adj at the same time, so only check that the
+        // unbind went through the dependents update, and that a partial pass was done.
+        final long partialAfter = readOomAdjCount(PARTIAL_COUNT);
+        final long fallbackAfter = readOomAdjCount(PARTIAL_FALLBACK_COUNT);
+        assertTrue("Unbind did not update the oom_adj of the dependent processes",
+                partialAfter + fallbackAfter > partialBefore + fallbackBefore);
+        assertTrue("Unbind fell back to a full oom_adj update",
+                partialAfter > partialBefore);
+    }
+
+    /** Returns the given counter from the activity manager's process dump. */
+    private static long readOomAdjCount(String name) throws Exception {
+        final String dump = UiDevice.getInstance(InstrumentationRegistry.getInstrumentation())
+                .executeShellCommand("dumpsys activity -a processes");
+        final String key = " " + name + "=";
+        final int start = dump.indexOf(key);
+        if (start < 0) {
+            fail("No " + name + " in the activity manager dump");
+        }
+        int end = start + key.length();
+        while (end < dump.length() && Character.isDigit(dump.charAt(end))) {
+            end++;
+        }
+        return Long.parseLong(dump.substring(start + key.length(), end));
+    }
+
+    /**
+     * Waits until the last state reported to the observer matches what the activity manager
+     * holds for the uid, and returns it. Fails if they do not agree before the timeout.
+     */
+    private int waitForReportedState() throws Exception {
+        final long deadline = SystemClock.uptimeMillis() + TIMEOUT_MS;
+        int lastReported = ActivityManager.PROCESS_STATE_UNKNOWN;
+        while (true) {
+            final int current = mAm.getUidProcessState(mTestPkgUid,
+                    mContext.getOpPackageName());
+            Integer reported;
+            while ((reported = mReportedStates.poll()) != null) {
+                lastReported = reported;
+            }
+            if (lastReported == current) {
+                return current;
+            }
+            final long remaining = deadline - SystemClock.uptimeMillis();
+            if (remaining <= 0) {
+                assertEquals("Uid observer was not told about the uid state of " + mTestPkgUid,
+                        current, lastReported);
+            }
+            reported = mReportedStates.poll(Math.min(remaining, 100), TimeUnit.MILLISECONDS);
+            if (reported != null) {
+                lastReported = reported;
+            }
+        }
+    }
+}
@@ -12,9 +12,15 @@ import android.test.RenamingDelegatingContext;
 import android.util.Log;
 import android.util.Pair;
 
+import com.android.internal.util.FastXmlSerializer;
 import com.android.server.job.JobStore.JobSet;
 import com.android.server.job.controllers.JobStatus;
 
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Iterator;
 
 /**
@@ -267,6 +273,88 @@ public class JobStoreTest extends AndroidTestCase {
         assertEquals("Wrong job persisted.", 43, jobStatus.getJobId());
     }
 
+    /**
+     * Test that a write of unchanged jobs is skipped, even though the wall clock times written
+     * for their delay and deadline are derived from the current time.
+     */
+    public void testUnchangedJobsNotRewritten() throws Exception {
+        final JobInfo task = new Builder(7, mComponent)
+                .setMinimumLatency(5000L)
+                .setOverrideDeadline(30000L)
+                .setPersisted(true)
+                .build();
+        final JobStatus ts = JobStatus.createFromJobInfo(task, SOME_UID, null, -1, null);
+        mTaskStoreUnderTest.add(ts);
+        Thread.sleep(IO_WAIT);
+        final int skippedWrites = mTaskStoreUnderTest.getSkippedWriteCount();
+
+        // Adding the same job again requests a write of exactly the same jobs.
+        mTaskStoreUnderTest.add(ts);
+        Thread.sleep(IO_WAIT);
+        assertEquals("Unchanged jobs were written again.",
+                skippedWrites + 1, mTaskStoreUnderTest.getSkippedWriteCount());
+
+        // A real change is still written.
+        mTaskStoreUnderTest.remove(ts, true);
+        Thread.sleep(IO_WAIT);
+        assertEquals("Changed jobs were not written.",
+                skippedWrites + 1, mTaskStoreUnderTest.getSkippedWriteCount());
+        final JobSet jobStatusSet = new JobSet();
+        mTaskStoreUnderTest.readJobMapFromDisk(jobStatusSet, true);
+        assertEquals("Removed job still persisted.", 0, jobStatusSet.size());
+    }
+
+    /**
+     * Test that a jobs file written as XML text, as older builds did, is still read back.
+     */
+    public void testReadingTextJobsFile() throws Exception {
+        // Let the write requested by clear() in setUp() finish before replacing the file.
+        Thread.sleep(IO_WAIT);
+        final JobInfo task = new Builder(9, mComponent)
+                .setPeriodic(10000L)
+                .setRequiresCharging(true)
+                .setPersisted(true)
+                .build();
+        final File jobsFile = new File(mTestContext.getFilesDir(), "system/job/jobs.xml");
+        final FileOutputStream fos = new FileOutputStream(jobsFile);
+        try {
+            final XmlSerializer out = new FastXmlSerializer();
+            out.setOutput(fos, StandardCharsets.UTF_8.name());
+            out.startDocument(null, true);
+            out.startTag(null, "job-info");
+            out.attribute(null, "version", "0");
+            out.startTag(null, "job");
+            out.attribute(null, "jobid", Integer.toString(task.getId()));
+            out.attribute(null, "package", mComponent.getPackageName());
+            out.attribute(null, "class", mComponent.getClassName());
+            out.attribute(null, "sourceUserId", "0");
+            out.attribute(null, "uid", Integer.toString(SOME_UID));
+            out.attribute(null, "priority", "0");
+            out.attribute(null, "flags", "0");
+            out.startTag(null, "constraints");
+            out.attribute(null, "charging", Boolean.toString(true));
+            out.endTag(null, "constraints");
+            out.startTag(null, "periodic");
+            out.attribute(null, "period", Long.toString(task.getIntervalMillis()));
+            out.attribute(null, "flex", Long.toString(task.getFlexMillis()));
+            out.endTag(null, "periodic");
+            out.startTag(null, "extras");
+            out.endTag(null, "extras");
+            out.endTag(null, "job");
+            out.endTag(null, "job-info");
+            out.endDocument();
+        } finally {
+            fos.close();
+        }
+
+        final JobSet jobStatusSet = new JobSet();
+        mTaskStoreUnderTest.readJobMapFromDisk(jobStatusSet, true);
+        assertEquals("Text jobs file not read.", 1, jobStatusSet.size());
+        final JobStatus loaded = jobStatusSet.getAllJobs().get(0);
+        assertTasksEqual(task, loaded.getJob());
+        assertEquals("Different uids.", SOME_UID, loaded.getUid());
+    }
+
     /**
      * Helper function to throw an error if the provided task and TaskStatus objects are not equal.
      */
@@ -31,6 +31,7 @@ import android.support.test.runner.AndroidJUnit4;
 import android.test.suitebuilder.annotation.MediumTest;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.nio.charset.StandardCharsets;
@@ -109,6 +110,32 @@ public class PackageParserTest {
         assertEquals("android", pkg.packageName);
     }
 
+    @Test
+    public void testParse_corruptCacheEntry() throws Exception {
+        PackageParser pp = new CachePackageNameParser();
+
+        pp.setCacheDir(mTmpDir);
+        pp.parsePackage(FRAMEWORK, 0 /* parseFlags */, true /* useCaches */);
+        assertEquals(1, mTmpDir.list().length);
+
+        // Truncate the cache entry; the next parse must ignore it and reparse the package.
+        File cacheFile = mTmpDir.listFiles()[0];
+        byte[] payload = PackageParser.readCacheFile(cacheFile);
+        assertEquals("cache_android", new String(payload, StandardCharsets.UTF_8));
+        try (FileOutputStream fos = new FileOutputStream(cacheFile)) {
+            fos.write(new byte[] { 1, 2, 3 });
+        }
+        assertNull(PackageParser.readCacheFile(cacheFile));
+
+        PackageParser.Package pkg = pp.parsePackage(FRAMEWORK, 0 /* parseFlags */,
+                true /* useCaches */);
+        assertEquals("android", pkg.packageName);
+
+        // The entry should have been rewritten with a valid header.
+        pkg = pp.parsePackage(FRAMEWORK, 0 /* parseFlags */, true /* useCaches */);
+        assertEquals("cache_android", pkg.packageName);
+    }
+
     @Test
     public void test_serializePackage() throws Exception {
         PackageParser pp = new PackageParser();
@@ -17,6 +17,7 @@
 package com.android.server.pm;
 
 import android.content.pm.PackageParser;
+import android.os.FileUtils;
 import android.support.test.runner.AndroidJUnit4;
 import android.util.Log;
 
@@ -27,9 +28,15 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
+import libcore.io.IoUtils;
+
 /**
  * Tests for {@link ParallelPackageParser}
  */
@@ -66,6 +73,78 @@ public class ParallelPackageParserTest {
         }
     }
 
+    @Test
+    public void testSortBySizeDescending() throws Exception {
+        File dir = IoUtils.createTemporaryDirectory(TAG);
+        try {
+            List<File> files = new ArrayList<>();
+            int[] sizes = { 10, 300, 0, 20 };
+            for (int i = 0; i < sizes.length; i++) {
+                File file = new File(dir, "f" + i + ".apk");
+                try (FileOutputStream fos = new FileOutputStream(file)) {
+                    fos.write(new byte[sizes[i]]);
+                }
+                files.add(file);
+            }
+            List<File> sorted = ParallelPackageParser.sortBySizeDescending(files);
+            Assert.assertEquals(Arrays.asList(files.get(1), files.get(3), files.get(0),
+                    files.get(2)), sorted);
+        } finally {
+            FileUtils.deleteContents(dir);
+            dir.delete();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testPendingBytesBounded() throws Exception {
+        File dir = IoUtils.createTemporaryDirectory(TAG);
+        try {
+            // Each result is estimated at a quarter of the budget, so only four may be
+            // waiting to be taken at a time.
+            final int fileSize = (int) (ParallelPackageParser.MAX_PENDING_BYTES / 4);
+            final int fileCount = 10;
+            Set<File> submittedFiles = new HashSet<>();
+            long resultBytes = 0;
+            for (int i = 0; i < fileCount; i++) {
+                File file = new File(dir, "f" + i + ".apk");
+                try (FileOutputStream fos = new FileOutputStream(file)) {
+                    fos.write(new byte[fileSize]);
+                }
+                Assert.assertEquals(fileSize, ParallelPackageParser.getPackageSize(file));
+                resultBytes = ParallelPackageParser.estimateResultBytes(file);
+                submittedFiles.add(file);
+            }
+            final long admittedBytes =
+                    (ParallelPackageParser.MAX_PENDING_BYTES / resultBytes) * resultBytes;
+            Assert.assertTrue(admittedBytes < fileCount * resultBytes);
+
+            for (File file : submittedFiles) {
+                mParser.submit(file, 0);
+            }
+
+            // Producers fill the budget, then block instead of queueing more results.
+            while (mParser.getPendingBytes() < admittedBytes) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(200);
+            Assert.assertEquals(admittedBytes, mParser.getPendingBytes());
+
+            for (int i = 0; i < fileCount; i++) {
+                ParallelPackageParser.ParseResult result = mParser.take();
+                Assert.assertNotNull(result);
+                Assert.assertTrue(mParser.getPendingBytes() <= admittedBytes);
+                File parsedFile = result.scanFile;
+                Assert.assertTrue("Unexpected file " + parsedFile + ". Expected submitted files: "
+                        + submittedFiles, submittedFiles.remove(parsedFile));
+            }
+            Assert.assertTrue(submittedFiles.isEmpty());
+            Assert.assertEquals(0, mParser.getPendingBytes());
+        } finally {
+            FileUtils.deleteContents(dir);
+            dir.delete();
+        }
+    }
+
     class TestParallelPackageParser extends ParallelPackageParser {
 
         TestParallelPackageParser() {